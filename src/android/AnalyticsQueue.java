@@ -0,0 +1,162 @@
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.google.firebase.analytics.FirebaseAnalytics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+/**
+ * Firebase events of connections and pairing. GATT callbacks and the bond receiver only record what happened,
+ * the device matching and the bond state lookups they used to do inline run on the analytics thread, once
+ * per batch of events that arrived together.
+ */
+class AnalyticsQueue {
+
+    static final long BATCH_DELAY_MILLIS = 500;
+    static final int MAX_PENDING = 256;
+    static final int NO_RSSI = Integer.MAX_VALUE;
+
+    /**
+     * What happened, captured without any IPC or matching.
+     */
+    static class Event {
+        final BTAnalyticsLogTypes type;
+        final BluetoothDevice device;
+        final String state; // CONNECTED or DISCONNECTED, null for pairing events
+        final int errorCode; // gatt status of a disconnect, -1 when not set
+        final int rssi;
+
+        Event(BTAnalyticsLogTypes type, BluetoothDevice device, String state, int errorCode, int rssi) {
+            this.type = type;
+            this.device = device;
+            this.state = state;
+            this.errorCode = errorCode;
+            this.rssi = rssi;
+        }
+    }
+
+    // device details looked up once per batch
+    private static class DeviceInfo {
+        final String name;
+        final String peripheralType;
+        final String pairingState;
+
+        DeviceInfo(BluetoothDevice device, boolean withPairingState) {
+            SupportedPeripherals templateDevice = SupportedPeripherals.findMatchingDevice(device);
+            if (templateDevice != null) {
+                name = templateDevice.getDisplay();
+                peripheralType = templateDevice.getPeripheralType();
+            } else {
+                name = device.getName();
+                peripheralType = null;
+            }
+            pairingState = withPairingState ? pairingState(device) : null;
+        }
+
+        private static String pairingState(BluetoothDevice device) {
+            if (!DeviceProfile.get(device).nativePairing) {
+                return "NA";
+            }
+            return String.valueOf(device.getBondState() == BluetoothDevice.BOND_BONDED);
+        }
+    }
+
+    private final FirebaseAnalytics firebaseAnalytics;
+    private final ConcurrentLinkedQueue<Event> pending = new ConcurrentLinkedQueue<Event>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicInteger dropped = new AtomicInteger();
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Runnable flushRunnable = this::flush;
+
+    AnalyticsQueue(FirebaseAnalytics firebaseAnalytics) {
+        this.firebaseAnalytics = firebaseAnalytics;
+        thread = new HandlerThread("Analytics");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    void logConnection(BluetoothDevice device, String state, int errorCode, int rssi) {
+        offer(new Event(BTAnalyticsLogTypes.BT_CONNECTION, device, state, errorCode, rssi));
+    }
+
+    void logPairing(BTAnalyticsLogTypes type, BluetoothDevice device, int rssi) {
+        offer(new Event(type, device, null, -1, rssi));
+    }
+
+    // never blocks, events are dropped when the analytics thread can't keep up
+    private void offer(Event event) {
+        if (pendingCount.incrementAndGet() > MAX_PENDING) {
+            pendingCount.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        pending.offer(event);
+        if (flushScheduled.compareAndSet(false, true)) {
+            handler.postDelayed(flushRunnable, BATCH_DELAY_MILLIS);
+        }
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        Map<String, DeviceInfo> devices = new HashMap<String, DeviceInfo>();
+        int count = 0;
+        Event event;
+        while ((event = pending.poll()) != null) {
+            pendingCount.decrementAndGet();
+            boolean connection = event.type == BTAnalyticsLogTypes.BT_CONNECTION;
+            String key = event.device.getAddress() + (connection ? "+pairing" : "");
+            DeviceInfo info = devices.get(key);
+            if (info == null) {
+                info = new DeviceInfo(event.device, connection);
+                devices.put(key, info);
+            }
+            firebaseAnalytics.logEvent(event.type.toString(), asBundle(event, info));
+            count++;
+        }
+        int lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            Timber.w("Dropped %d analytics events", lost);
+        }
+        Timber.d("Logged %d analytics events", count);
+    }
+
+    private Bundle asBundle(Event event, DeviceInfo info) {
+        Bundle bundle = new Bundle();
+        bundle.putString("DEVICE_NAME", info.name);
+        if (info.peripheralType != null) {
+            bundle.putString("PERIPHERAL_TYPE", info.peripheralType);
+        }
+        if (event.state != null) {
+            bundle.putString("STATE", event.state);
+        }
+        if (info.pairingState != null) {
+            bundle.putString("PAIRING_STATE", info.pairingState);
+        }
+        if (event.rssi != NO_RSSI) {
+            bundle.putInt("BT_RSSI", event.rssi);
+        }
+        if (event.errorCode != -1) {
+            bundle.putString("ERROR_CODE", String.valueOf(event.errorCode)); // disconnection status code
+        }
+        return bundle;
+    }
+
+    // the plugin is destroyed, log what is pending and stop the thread
+    void shutdown() {
+        handler.removeCallbacks(flushRunnable);
+        handler.post(flushRunnable);
+        thread.quitSafely();
+    }
+}
@@ -18,25 +18,18 @@ import android.Manifest;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
-import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanResult;
-import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanSettings;
 import android.location.LocationManager;
-import android.os.Bundle;
-import android.os.ParcelUuid;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.IntentFilter;
-import android.os.Handler;
-import android.os.Looper;
 import android.os.Build;
 
 import android.provider.Settings;
@@ -50,10 +43,14 @@ import org.apache.cordova.PluginResult;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONException;
+import java.io.File;
 import java.lang.reflect.Method;
+import java.net.URI;
+import java.net.URISyntaxException;
 import timber.log.Timber;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static android.bluetooth.BluetoothDevice.DEVICE_TYPE_DUAL;
 import static android.bluetooth.BluetoothDevice.DEVICE_TYPE_LE;
@@ -76,16 +73,15 @@ public class BLECentralPlugin extends CordovaPlugin {
 
     private static final String CONNECT = "connect";
     private static final String AUTOCONNECT = "autoConnect";
+    private static final String CONNECT_WITH_RECIPE = "connectWithRecipe";
     private static final String DISCONNECT = "disconnect";
 
     private static final String QUEUE_CLEANUP = "queueCleanup";
+    private static final String SET_CONNECTION_OPTIONS = "setConnectionOptions";
     private static final String SET_PIN = "setPin";
 
     private static final String REQUEST_MTU = "requestMtu";
     private static final String REQUEST_CONNECTION_PRIORITY = "requestConnectionPriority";
-    private final String CONNECTION_PRIORITY_HIGH = "high";
-    private final String CONNECTION_PRIORITY_LOW = "low";
-    private final String CONNECTION_PRIORITY_BALANCED = "balanced";
     private static final String REFRESH_DEVICE_CACHE = "refreshDeviceCache";
 
     private static final String READ = "read";
@@ -93,6 +89,9 @@ public class BLECentralPlugin extends CordovaPlugin {
     private static final String WRITE_WITHOUT_RESPONSE = "writeWithoutResponse";
 
     private static final String READ_RSSI = "readRSSI";
+    private static final String SET_PREFERRED_PHY = "setPreferredPhy";
+    private static final String READ_PHY = "readPhy";
+    private static final String GET_CONNECTION_TIMINGS = "getConnectionTimings";
 
     private static final String START_NOTIFICATION = "startNotification"; // register for characteristic notification
     private static final String STOP_NOTIFICATION = "stopNotification"; // remove characteristic notification
@@ -111,12 +110,25 @@ public class BLECentralPlugin extends CordovaPlugin {
     private static final String CLOSE_L2CAP = "closeL2Cap";
     private static final String RECEIVE_L2CAP = "receiveDataL2Cap";
     private static final String WRITE_L2CAP = "writeL2Cap";
+    private static final String L2CAP_STATS = "getL2CapStats";
+    private static final String SEND_FILE_L2CAP = "sendFileL2Cap";
+    private static final String RECEIVE_FILE_L2CAP = "receiveFileL2Cap";
 
     private static final String START_LOCATION_STATE_NOTIFICATIONS = "startLocationStateNotifications";
     private static final String STOP_LOCATION_STATE_NOTIFICATIONS = "stopLocationStateNotifications";
 
+    private static final String START_PRESENCE_NOTIFICATIONS = "startPresenceNotifications";
+    private static final String STOP_PRESENCE_NOTIFICATIONS = "stopPresenceNotifications";
+    private static final String START_CONNECTION_EVENTS = "startConnectionEvents";
+    private static final String STOP_CONNECTION_EVENTS = "stopConnectionEvents";
+    private static final String LIST_IN_RANGE = "listInRange";
+    private static final String SET_LOG_LEVEL = "setLogLevel";
+    private static final String DUMP_LOG = "dumpLog";
+    private static final String GET_METRICS = "getMetrics";
+    private static final String START_TRACE = "startTrace";
+    private static final String EXPORT_TRACE = "exportTrace";
+
     // callbacks
-    CallbackContext discoverCallback;
     private CallbackContext enableBluetoothCallback;
 
     private static final String TAG = "BLEPlugin";
@@ -127,6 +139,11 @@ public class BLECentralPlugin extends CordovaPlugin {
     // key is the MAC Address
     Map<String, Peripheral> peripherals = new LinkedHashMap<String, Peripheral>();
 
+    // shared by all peripherals, serializes and caps GATT connections
+    private final ConnectionManager connectionManager = new ConnectionManager();
+    private final BondPipeline bondPipeline = new BondPipeline();
+    private final AtomicLong scanResults = new AtomicLong();
+
     // scan options
     boolean reportDuplicates = false;
 
@@ -138,10 +155,13 @@ public class BLECentralPlugin extends CordovaPlugin {
     private static int COMPILE_SDK_VERSION = -1;
     private CallbackContext permissionCallback;
     private String deviceMacAddress;
+    private ConnectOptions deviceConnectOptions;
+    private ConnectRecipe deviceConnectRecipe;
     private UUID[] serviceUUIDs;
     private int scanSeconds;
     private ScanSettings scanSettings;
-    private final Handler stopScanHandler = new Handler(Looper.getMainLooper());
+    private ScanScheduler scanScheduler;
+    private PresenceTracker presenceTracker;
 
     // Bluetooth state notification
     CallbackContext stateCallback;
@@ -152,7 +172,7 @@ public class BLECentralPlugin extends CordovaPlugin {
     public int bondedState;
     BluetoothDevice device;
 
-    private FirebaseAnalytics mFirebaseAnalytics;
+    private AnalyticsQueue analytics;
 
     Map<Integer, String> bluetoothStates = new Hashtable<Integer, String>() {{
         put(BluetoothAdapter.STATE_OFF, "off");
@@ -170,24 +190,15 @@ public class BLECentralPlugin extends CordovaPlugin {
     CallbackContext locationStateCallback;
     BroadcastReceiver locationStateReceiver;
 
-    public void setPairingCallback(PairingCallback pairingCallback) {
-        this.pairingCallback = pairingCallback;
-    }
-
-    PairingCallback pairingCallback;
-
-    interface PairingCallback{
-        void onPairingCompleted(BluetoothDevice device, int bondedState);
-    }
-
 
     @Override
     protected void pluginInitialize() {
-        mFirebaseAnalytics = FirebaseAnalytics.getInstance(cordova.getContext());
+        analytics = new AnalyticsQueue(FirebaseAnalytics.getInstance(cordova.getContext()));
         if (COMPILE_SDK_VERSION == -1) {
             Context context = cordova.getContext();
             COMPILE_SDK_VERSION = context.getApplicationContext().getApplicationInfo().targetSdkVersion;
         }
+        DeviceProfile.load(cordova.getContext());
     }
 
     @Override
@@ -195,9 +206,20 @@ public class BLECentralPlugin extends CordovaPlugin {
         removeStateListener();
         removeLocationStateListener();
         removeBondStateListener();
+        if (scanScheduler != null) {
+            scanScheduler.shutdown();
+        }
+        if (presenceTracker != null) {
+            presenceTracker.clear();
+        }
+        connectionManager.setEventCallback(null);
+        bondPipeline.clear();
         for(Peripheral peripheral : peripherals.values()) {
             peripheral.disconnect();
         }
+        L2CAPExecutor.shutdown();
+        PeripheralLoops.shutdown();
+        analytics.shutdown();
     }
 
     @Override
@@ -205,9 +227,18 @@ public class BLECentralPlugin extends CordovaPlugin {
         removeStateListener();
         removeLocationStateListener();
         removeBondStateListener();
+        if (scanScheduler != null) {
+            scanScheduler.shutdown();
+        }
+        if (presenceTracker != null) {
+            presenceTracker.clear();
+        }
+        connectionManager.setEventCallback(null);
+        bondPipeline.clear();
         for(Peripheral peripheral : peripherals.values()) {
             peripheral.disconnect();
         }
+        L2CAPExecutor.shutdown();
     }
 
     @Override
@@ -229,6 +260,11 @@ public class BLECentralPlugin extends CordovaPlugin {
             bluetoothAdapter = bluetoothManager.getAdapter();
         }
 
+        if (scanScheduler == null) {
+            scanScheduler = new ScanScheduler(bluetoothAdapter, leScanCallback);
+            presenceTracker = new PresenceTracker(scanScheduler);
+        }
+
         boolean validAction = true;
 
         if (action.equals(SCAN)) {
@@ -255,12 +291,22 @@ public class BLECentralPlugin extends CordovaPlugin {
         } else if (action.equals(CONNECT)) {
 
             String macAddress = args.getString(0);
-            connect(callbackContext, macAddress);
+            ConnectOptions options = new ConnectOptions(args.optJSONObject(1), connectionManager.getConnectTimeout());
+            connect(callbackContext, macAddress, options, null);
+
+        } else if (action.equals(CONNECT_WITH_RECIPE)) {
+
+            String macAddress = args.getString(0);
+            ConnectRecipe recipe = new ConnectRecipe(callbackContext, args.getJSONObject(1));
+            ConnectOptions options = new ConnectOptions(args.optJSONObject(2), connectionManager.getConnectTimeout());
+            connect(callbackContext, macAddress, options, recipe);
 
         } else if (action.equals(AUTOCONNECT)) {
 
             String macAddress = args.getString(0);
-            autoConnect(callbackContext, macAddress);
+            // autoConnect waits for the device to come in range, so there is no deadline by default
+            ConnectOptions options = new ConnectOptions(args.optJSONObject(1), 0);
+            autoConnect(callbackContext, macAddress, options);
 
         } else if (action.equals(DISCONNECT)) {
 
@@ -272,6 +318,11 @@ public class BLECentralPlugin extends CordovaPlugin {
             String macAddress = args.getString(0);
             queueCleanup(callbackContext, macAddress);
 
+        } else if (action.equals(SET_CONNECTION_OPTIONS)) {
+
+            JSONObject options = args.getJSONObject(0);
+            setConnectionOptions(callbackContext, options);
+
         } else if (action.equals(SET_PIN)) {
 
             String pin = args.getString(0);
@@ -309,6 +360,23 @@ public class BLECentralPlugin extends CordovaPlugin {
             String macAddress = args.getString(0);
             readRSSI(callbackContext, macAddress);
 
+        } else if (action.equals(SET_PREFERRED_PHY)) {
+
+            String macAddress = args.getString(0);
+            int phyMask = DeviceProfile.parsePhyMask(args.getString(1));
+            String codedOption = args.optString(2);
+            setPreferredPhy(callbackContext, macAddress, phyMask, codedOption);
+
+        } else if (action.equals(READ_PHY)) {
+
+            String macAddress = args.getString(0);
+            readPhy(callbackContext, macAddress);
+
+        } else if (action.equals(GET_CONNECTION_TIMINGS)) {
+
+            String macAddress = args.getString(0);
+            getConnectionTimings(callbackContext, macAddress);
+
         } else if (action.equals(WRITE)) {
 
             String macAddress = args.getString(0);
@@ -332,7 +400,9 @@ public class BLECentralPlugin extends CordovaPlugin {
             String macAddress = args.getString(0);
             UUID serviceUUID = uuidFromString(args.getString(1));
             UUID characteristicUUID = uuidFromString(args.getString(2));
-            registerNotifyCallback(callbackContext, macAddress, serviceUUID, characteristicUUID);
+            JSONObject options = args.optJSONObject(3);
+            boolean persistent = options != null && options.optBoolean("persistent", false);
+            registerNotifyCallback(callbackContext, macAddress, serviceUUID, characteristicUUID, persistent);
 
         } else if (action.equals(STOP_NOTIFICATION)) {
 
@@ -423,6 +493,80 @@ public class BLECentralPlugin extends CordovaPlugin {
             removeLocationStateListener();
             callbackContext.success();
 
+        } else if (action.equals(START_PRESENCE_NOTIFICATIONS)) {
+
+            if (presenceTracker.hasPresenceCallback()) {
+                callbackContext.error("Presence callback already registered.");
+            } else {
+                JSONObject options = args.optJSONObject(0);
+                long timeoutMillis = options != null ? options.optLong("timeout", PresenceTracker.DEFAULT_TIMEOUT_MILLIS) : PresenceTracker.DEFAULT_TIMEOUT_MILLIS;
+                presenceTracker.setPresenceCallback(callbackContext, timeoutMillis);
+                PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+                result.setKeepCallback(true);
+                callbackContext.sendPluginResult(result);
+            }
+
+        } else if (action.equals(STOP_PRESENCE_NOTIFICATIONS)) {
+
+            presenceTracker.removePresenceCallback();
+            callbackContext.success();
+
+        } else if (action.equals(START_CONNECTION_EVENTS)) {
+
+            if (connectionManager.hasEventCallback()) {
+                callbackContext.error("Connection events callback already registered.");
+            } else {
+                connectionManager.setEventCallback(callbackContext);
+                PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+                result.setKeepCallback(true);
+                callbackContext.sendPluginResult(result);
+            }
+
+        } else if (action.equals(STOP_CONNECTION_EVENTS)) {
+
+            connectionManager.removeEventCallback();
+            callbackContext.success();
+
+        } else if (action.equals(LIST_IN_RANGE)) {
+
+            callbackContext.success(presenceTracker.asJSONArray());
+
+        } else if (action.equals(SET_LOG_LEVEL)) {
+
+            // { logcat: 'info', buffer: 'debug', size: 1024 }
+            JSONObject options = args.getJSONObject(0);
+            try {
+                BLELog.configure(options.has("logcat") ? options.getString("logcat") : null,
+                        options.has("buffer") ? options.getString("buffer") : null,
+                        options.optInt("size", 0));
+                callbackContext.success();
+            } catch (IllegalArgumentException e) {
+                callbackContext.error(e.getMessage());
+            }
+
+        } else if (action.equals(DUMP_LOG)) {
+
+            boolean clear = !args.isNull(0) && args.getBoolean(0);
+            callbackContext.success(BLELog.dump(clear));
+
+        } else if (action.equals(GET_METRICS)) {
+
+            String macAddress = args.isNull(0) ? null : args.getString(0);
+            boolean reset = !args.isNull(1) && args.getBoolean(1);
+            getMetrics(callbackContext, macAddress, reset);
+
+        } else if (action.equals(START_TRACE)) {
+
+            // { capacity: 4096 }
+            JSONObject options = args.optJSONObject(0);
+            BLETrace.start(options != null ? options.optInt("capacity", BLETrace.DEFAULT_CAPACITY) : BLETrace.DEFAULT_CAPACITY);
+            callbackContext.success();
+
+        } else if (action.equals(EXPORT_TRACE)) {
+
+            boolean stop = !args.isNull(0) && args.getBoolean(0);
+            callbackContext.success(BLETrace.export(stop));
+
         } else if (action.equals(START_SCAN_WITH_OPTIONS)) {
             UUID[] serviceUUIDs = parseServiceUUIDList(args.getJSONArray(0));
             JSONObject options = args.getJSONObject(1);
@@ -541,9 +685,8 @@ public class BLECentralPlugin extends CordovaPlugin {
 
             String macAddress = args.getString(0);
             int psm = args.getInt(1);
-            JSONObject options = args.optJSONObject(2);
-            boolean secureChannel = options != null && options.optBoolean("secureChannel", false);
-            connectL2cap(callbackContext, macAddress, psm, secureChannel);
+            L2CAPOptions options = new L2CAPOptions(args.optJSONObject(2));
+            connectL2cap(callbackContext, macAddress, psm, options);
 
         } else if (action.equals(CLOSE_L2CAP)) {
 
@@ -564,6 +707,27 @@ public class BLECentralPlugin extends CordovaPlugin {
             int psm = args.getInt(1);
             registerL2CapReceiver(callbackContext, macAddress, psm);
 
+        } else if (action.equals(L2CAP_STATS)) {
+
+            String macAddress = args.getString(0);
+            int psm = args.getInt(1);
+            getL2CapStats(callbackContext, macAddress, psm);
+
+        } else if (action.equals(SEND_FILE_L2CAP)) {
+
+            String macAddress = args.getString(0);
+            int psm = args.getInt(1);
+            String path = args.getString(2);
+            sendFileL2cap(callbackContext, macAddress, psm, path);
+
+        } else if (action.equals(RECEIVE_FILE_L2CAP)) {
+
+            String macAddress = args.getString(0);
+            int psm = args.getInt(1);
+            String path = args.getString(2);
+            long length = args.isNull(3) ? 0 : args.getLong(3); // 0 reads until the channel closes
+            receiveFileL2cap(callbackContext, macAddress, psm, path, length);
+
         } else {
 
             validAction = false;
@@ -607,7 +771,7 @@ public class BLECentralPlugin extends CordovaPlugin {
 
             // just low energy devices (filters out classic and unknown devices)
             if (type == DEVICE_TYPE_LE || type == DEVICE_TYPE_DUAL) {
-                Peripheral p = new Peripheral(device, mFirebaseAnalytics);
+                Peripheral p = new Peripheral(device, analytics, connectionManager);
                 bonded.put(p.asJSONObject());
             }
         }
@@ -633,7 +797,23 @@ public class BLECentralPlugin extends CordovaPlugin {
         if (action.equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
             final int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
             sendBluetoothStateChange(state);
-            if (state == BluetoothAdapter.STATE_OFF) {
+            if (state == BluetoothAdapter.STATE_TURNING_OFF && connectionManager.isRestoreConnections()) {
+                // suspend before the links drop so the reconnect policy doesn't retry while the adapter is off
+                for(Peripheral peripheral : peripherals.values()) {
+                    if (peripheral.isConnected() || peripheral.isConnecting()) {
+                        peripheral.suspendForRestore();
+                    }
+                }
+            } else if (state == BluetoothAdapter.STATE_ON) {
+                // the connection manager connects them within the connection slot limit
+                for(Peripheral peripheral : peripherals.values()) {
+                    peripheral.restore();
+                }
+            } else if (state == BluetoothAdapter.STATE_OFF) {
+                if (scanScheduler != null) {
+                    scanScheduler.onAdapterDisabled();
+                }
+
                 // #894 When Bluetooth is physically turned off the whole process might die, so the normal
                 // onConnectionStateChange callbacks won't be invoked
 
@@ -652,9 +832,8 @@ public class BLECentralPlugin extends CordovaPlugin {
             bondedState = device.getBondState();
             onBondStateChangedEvent(intent);
             sendBluetoothBondStateChange(bondedState);
-            if(pairingCallback != null){
-                pairingCallback.onPairingCompleted(device, bondedState);
-            }
+            int previousBondState = intent.getIntExtra(BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE, BluetoothDevice.ERROR);
+            bondPipeline.onBondStateChanged(device, bondedState, previousBondState);
         }
     }
 
@@ -674,8 +853,7 @@ public class BLECentralPlugin extends CordovaPlugin {
                 /* Possible pairing failed case as Pairing state changed from BOND_BONDING to BOND_NONE */
                 if (previousBondState == BluetoothDevice.BOND_BONDING) {
                     Timber.i("Device " + this.device.getName() + "--> Possible Pairing Failed as pairing state changed from BOND_BONDING to BOND_NONE");
-                    Bundle eventBundle = getFirebaseInfoBundle();
-                    mFirebaseAnalytics.logEvent(BTAnalyticsLogTypes.BT_PAIRING_FAILURE.toString(), eventBundle);
+                    analytics.logPairing(BTAnalyticsLogTypes.BT_PAIRING_FAILURE, this.device, scannedRssi(this.device));
                 }
                 break;
             case BluetoothDevice.BOND_BONDING:
@@ -684,33 +862,17 @@ public class BLECentralPlugin extends CordovaPlugin {
                 break;
             case BluetoothDevice.BOND_BONDED:
                 Timber.i("Device paired successfully :" + this.device.getName());
-                Bundle eventBundle = getFirebaseInfoBundle();
-                mFirebaseAnalytics.logEvent(BTAnalyticsLogTypes.BT_PAIRING_SUCCESS.toString(), eventBundle);
+                analytics.logPairing(BTAnalyticsLogTypes.BT_PAIRING_SUCCESS, this.device, scannedRssi(this.device));
                 break;
             default:
                 break;
         }
     }
 
-    private Bundle getFirebaseInfoBundle() {
-        Bundle bundle = new Bundle();
-        SupportedPeripherals templateDevice = SupportedPeripherals.findMatchingDevice(this.device);
-        if(templateDevice!=null) {
-            Timber.i(templateDevice.getDisplay());
-            Timber.i(templateDevice.getPeripheralType());
-            bundle.putString("DEVICE_NAME", templateDevice.getDisplay());
-            bundle.putString("PERIPHERAL_TYPE", templateDevice.getPeripheralType());
-        } else {
-            bundle.putString("DEVICE_NAME", this.device.getName());
-        }
-        if(peripherals!=null) {
-            Peripheral scannedInstance = peripherals.get(this.device.getAddress());
-            if (scannedInstance != null) {
-                Timber.i("Scanned instance  RSSI " + scannedInstance.advertisingRSSI);
-                bundle.putInt("BT_RSSI", scannedInstance.advertisingRSSI);
-            }
-        }
-        return bundle;
+    // the advertised RSSI when the device was scanned
+    private int scannedRssi(BluetoothDevice device) {
+        Peripheral scannedInstance = peripherals.get(device.getAddress());
+        return scannedInstance != null ? scannedInstance.analyticsRssi() : AnalyticsQueue.NO_RSSI;
     }
 
     private void sendBluetoothStateChange(int state) {
@@ -836,11 +998,13 @@ public class BLECentralPlugin extends CordovaPlugin {
         this.locationStateReceiver = null;
     }
 
-    private void connect(CallbackContext callbackContext, String macAddress) {
+    private void connect(CallbackContext callbackContext, String macAddress, ConnectOptions options, ConnectRecipe recipe) {
         if (COMPILE_SDK_VERSION >= 31 && Build.VERSION.SDK_INT >= 31) { // (API 31) Build.VERSION_CODE.S
             if (!PermissionHelper.hasPermission(this, BLUETOOTH_CONNECT)) {
                 permissionCallback = callbackContext;
                 deviceMacAddress = macAddress;
+                deviceConnectOptions = options;
+                deviceConnectRecipe = recipe;
                 PermissionHelper.requestPermission(this, REQUEST_BLUETOOTH_CONNECT, BLUETOOTH_CONNECT);
                 return;
             }
@@ -854,7 +1018,7 @@ public class BLECentralPlugin extends CordovaPlugin {
 
         if (!peripherals.containsKey(macAddress) && BLECentralPlugin.this.bluetoothAdapter.checkBluetoothAddress(macAddress)) {
             BluetoothDevice device = BLECentralPlugin.this.bluetoothAdapter.getRemoteDevice(macAddress);
-            Peripheral peripheral = new Peripheral(device, mFirebaseAnalytics);
+            Peripheral peripheral = new Peripheral(device, analytics, connectionManager);
             peripherals.put(macAddress, peripheral);
         }
 
@@ -863,19 +1027,20 @@ public class BLECentralPlugin extends CordovaPlugin {
             // #894: BLE adapter state listener required so disconnect can be fired on BLE disabled
             addStateListener();
             addBondStateListener();
-            peripheral.connect(callbackContext, cordova.getActivity(), false);
+            peripheral.connect(callbackContext, cordova.getActivity(), false, options, recipe);
         } else {
             callbackContext.error("Peripheral " + macAddress + " not found.");
         }
 
     }
 
-    private void autoConnect(CallbackContext callbackContext, String macAddress) {
+    private void autoConnect(CallbackContext callbackContext, String macAddress, ConnectOptions options) {
 
         if (COMPILE_SDK_VERSION >= 31 && Build.VERSION.SDK_INT >= 31) { // (API 31) Build.VERSION_CODE.S
             if (!PermissionHelper.hasPermission(this, BLUETOOTH_CONNECT)) {
                 permissionCallback = callbackContext;
                 deviceMacAddress = macAddress;
+                deviceConnectOptions = options;
                 PermissionHelper.requestPermission(this, REQUEST_BLUETOOTH_CONNECT_AUTO, BLUETOOTH_CONNECT);
                 return;
             }
@@ -896,7 +1061,7 @@ public class BLECentralPlugin extends CordovaPlugin {
                 Timber.i("Device Mac Address %s", device);
                 Timber.i("Bond State %s", bondedState);
 
-                peripheral = new Peripheral(device, mFirebaseAnalytics);
+                peripheral = new Peripheral(device, analytics, connectionManager);
                 peripherals.put(device.getAddress(), peripheral);
             } else {
                 callbackContext.error(macAddress + " is not a valid MAC address.");
@@ -910,28 +1075,27 @@ public class BLECentralPlugin extends CordovaPlugin {
         BluetoothDevice pairedDevice;
         pairedDevice = bluetoothAdapter.getRemoteDevice(macAddress);
 
-        if (COMPILE_SDK_VERSION >= 29 && Build.VERSION.SDK_INT >= 29 && (pairedDevice.getName().contains("UA-651") || pairedDevice.getName().contains("UC-352")
-                || pairedDevice.getName().contains("IR20") || pairedDevice.getName().contains("TAIDOC TD8255")
-                || pairedDevice.getName().contains("TD1107") || pairedDevice.getName().contains("Nonin3230")
-        )) {
+        if (COMPILE_SDK_VERSION >= 29 && Build.VERSION.SDK_INT >= 29 && DeviceProfile.get(pairedDevice).bondBeforeConnect) {
             Timber.i("Bond State for Version > 29 : " + peripheral.getDevice().getBondState());
             if (peripheral.getDevice().getBondState() == BluetoothDevice.BOND_BONDED) {
-                peripheral.connect(callbackContext, cordova.getActivity(), false);// TODO setting this to false to stop auto connecting
+                peripheral.connect(callbackContext, cordova.getActivity(), false, options, null);// TODO setting this to false to stop auto connecting
             } else {
-                BluetoothDevice device = bluetoothAdapter.getRemoteDevice(macAddress);
-                setPairingCallback((btDevice, bondedState) -> {
-                    Timber.i("onPairingComplete Callback:" + btDevice);
-                    Timber.i("onPairingComplete Callback bond state:" + bondedState);
-                    if(bondedState == BluetoothDevice.BOND_BONDED) {
-                        Timber.i("onPairingComplete Initiate GattConnect:" + btDevice);
-                        Peripheral peripheralDevice = new Peripheral(btDevice, mFirebaseAnalytics);
-                        peripheralDevice.connect(callbackContext, cordova.getActivity(), false); // TODO setting this to false to stop auto connecting
+                // connect the peripheral the app knows about once it is bonded
+                final Peripheral bondingPeripheral = peripheral;
+                bondPipeline.bond(peripheral.getDevice(), new BondPipeline.Listener() {
+                    @Override
+                    public void onBonded(BluetoothDevice device) {
+                        bondingPeripheral.connect(callbackContext, cordova.getActivity(), false, options, null); // TODO setting this to false to stop auto connecting
+                    }
+
+                    @Override
+                    public void onBondFailed(BluetoothDevice device, String message) {
+                        callbackContext.error(bondingPeripheral.asJSONObject(message));
                     }
                 });
-                device.createBond();
             }
         } else {
-            peripheral.connect(callbackContext, cordova.getActivity(), false);// TODO setting this to false to stop auto connecting
+            peripheral.connect(callbackContext, cordova.getActivity(), false, options, null);// TODO setting this to false to stop auto connecting
         }
 
     }
@@ -978,6 +1142,32 @@ public class BLECentralPlugin extends CordovaPlugin {
         callbackContext.success();
     }
 
+    private void setConnectionOptions(CallbackContext callbackContext, JSONObject options) {
+        if (options.has("maxConnections")) {
+            connectionManager.setMaxConnections(options.optInt("maxConnections", ConnectionManager.DEFAULT_MAX_CONNECTIONS));
+        }
+        if (options.has("idleTimeout")) {
+            connectionManager.setIdleTimeout(options.optLong("idleTimeout", ConnectionManager.DEFAULT_IDLE_TIMEOUT_MILLIS));
+        }
+        if (options.has("connectTimeout")) {
+            connectionManager.setConnectTimeout(options.optLong("connectTimeout", ConnectionManager.DEFAULT_CONNECT_TIMEOUT_MILLIS));
+        }
+        JSONObject reconnect = options.optJSONObject("reconnect");
+        if (reconnect != null) {
+            connectionManager.getReconnectPolicy().configure(reconnect);
+        }
+        if (options.has("restore")) {
+            connectionManager.setRestoreConnections(options.optBoolean("restore", false));
+        }
+        if (options.has("bondTimeout")) {
+            bondPipeline.setBondTimeout(options.optLong("bondTimeout", BondPipeline.DEFAULT_BOND_TIMEOUT_MILLIS));
+        }
+        if (options.has("bondAttempts")) {
+            bondPipeline.setBondAttempts(options.optInt("bondAttempts", BondPipeline.DEFAULT_BOND_ATTEMPTS));
+        }
+        callbackContext.success();
+    }
+
     BroadcastReceiver broadCastReceiver;
     private void setPin(CallbackContext callbackContext, final String pin) {
 
@@ -1038,15 +1228,7 @@ public class BLECentralPlugin extends CordovaPlugin {
             return;
         }
 
-        int androidPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
-        if (priority.equals(CONNECTION_PRIORITY_LOW)) {
-            androidPriority = BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
-        } else if (priority.equals(CONNECTION_PRIORITY_BALANCED)) {
-            androidPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
-        } else if (priority.equals(CONNECTION_PRIORITY_HIGH)) {
-            androidPriority = BluetoothGatt.CONNECTION_PRIORITY_HIGH;
-        }
-        peripheral.requestConnectionPriority(androidPriority);
+        peripheral.requestConnectionPriority(Helper.parseConnectionPriority(priority));
         callbackContext.success();
     }
 
@@ -1098,6 +1280,88 @@ public class BLECentralPlugin extends CordovaPlugin {
         peripheral.queueReadRSSI(callbackContext);
     }
 
+    private void setPreferredPhy(CallbackContext callbackContext, String macAddress, int phyMask, String codedOption) {
+
+        Peripheral peripheral = peripherals.get(macAddress);
+
+        if (peripheral == null) {
+            callbackContext.error("Peripheral " + macAddress + " not found.");
+            return;
+        }
+
+        if (!peripheral.isConnected()) {
+            callbackContext.error("Peripheral " + macAddress + " is not connected.");
+            return;
+        }
+
+        if (phyMask == 0) {
+            callbackContext.error("Invalid PHY, expected 1M, 2M or coded.");
+            return;
+        }
+
+        int phyOptions = BluetoothDevice.PHY_OPTION_NO_PREFERRED;
+        if ("s2".equalsIgnoreCase(codedOption)) {
+            phyOptions = BluetoothDevice.PHY_OPTION_S2;
+        } else if ("s8".equalsIgnoreCase(codedOption)) {
+            phyOptions = BluetoothDevice.PHY_OPTION_S8;
+        }
+        peripheral.queueSetPreferredPhy(callbackContext, phyMask, phyMask, phyOptions);
+    }
+
+    private void readPhy(CallbackContext callbackContext, String macAddress) {
+
+        Peripheral peripheral = peripherals.get(macAddress);
+
+        if (peripheral == null) {
+            callbackContext.error("Peripheral " + macAddress + " not found.");
+            return;
+        }
+
+        if (!peripheral.isConnected()) {
+            callbackContext.error("Peripheral " + macAddress + " is not connected.");
+            return;
+        }
+        peripheral.queueReadPhy(callbackContext);
+    }
+
+    // metrics of one peripheral or of the plugin and every peripheral that connected
+    private void getMetrics(CallbackContext callbackContext, String macAddress, boolean reset) throws JSONException {
+
+        if (macAddress != null) {
+            Peripheral peripheral = peripherals.get(macAddress);
+            if (peripheral == null) {
+                callbackContext.error("Peripheral " + macAddress + " not found.");
+                return;
+            }
+            callbackContext.success(peripheral.getMetrics(reset));
+            return;
+        }
+
+        JSONObject metrics = new JSONObject();
+        metrics.put("scanResults", reset ? scanResults.getAndSet(0) : scanResults.get());
+        metrics.put("bondRetries", bondPipeline.getRetries(reset));
+        JSONObject peripheralMetrics = new JSONObject();
+        for (Peripheral peripheral : peripherals.values()) {
+            if (peripheral.hasConnected()) {
+                peripheralMetrics.put(peripheral.getDevice().getAddress(), peripheral.getMetrics(reset));
+            }
+        }
+        metrics.put("peripherals", peripheralMetrics);
+        callbackContext.success(metrics);
+    }
+
+    private void getConnectionTimings(CallbackContext callbackContext, String macAddress) {
+
+        Peripheral peripheral = peripherals.get(macAddress);
+
+        if (peripheral == null) {
+            callbackContext.error("Peripheral " + macAddress + " not found.");
+            return;
+        }
+
+        callbackContext.success(peripheral.getConnectionTimings());
+    }
+
     private void write(CallbackContext callbackContext, String macAddress, UUID serviceUUID, UUID characteristicUUID,
                        byte[] data, int writeType) {
 
@@ -1118,7 +1382,7 @@ public class BLECentralPlugin extends CordovaPlugin {
 
     }
 
-    private void connectL2cap(CallbackContext callbackContext, String macAddress, int psm, boolean secureChannel) {
+    private void connectL2cap(CallbackContext callbackContext, String macAddress, int psm, L2CAPOptions options) {
         Peripheral peripheral = peripherals.get(macAddress);
         if (peripheral == null) {
             callbackContext.error("Peripheral " + macAddress + " not found.");
@@ -1130,7 +1394,7 @@ public class BLECentralPlugin extends CordovaPlugin {
             return;
         }
 
-        peripheral.connectL2cap(callbackContext, psm, secureChannel);
+        peripheral.connectL2cap(callbackContext, psm, options);
     }
 
     private void disconnectL2cap(CallbackContext callbackContext, String macAddress, int psm) {
@@ -1158,7 +1422,8 @@ public class BLECentralPlugin extends CordovaPlugin {
             return;
         }
 
-        cordova.getThreadPool().execute(() -> peripheral.writeL2CapChannel(callbackContext, psm, data));
+        // queued for the channel's writer thread, doesn't block
+        peripheral.writeL2CapChannel(callbackContext, psm, data);
 
     }
 
@@ -1175,7 +1440,81 @@ public class BLECentralPlugin extends CordovaPlugin {
 
     }
 
-    private void registerNotifyCallback(CallbackContext callbackContext, String macAddress, UUID serviceUUID, UUID characteristicUUID) {
+    private void sendFileL2cap(CallbackContext callbackContext, String macAddress, int psm, String path) {
+
+        Peripheral peripheral = peripherals.get(macAddress);
+
+        if (peripheral == null) {
+            callbackContext.error("Peripheral " + macAddress + " not found.");
+            return;
+        }
+
+        if (!peripheral.isL2capConnected(psm)) {
+            callbackContext.error("Peripheral " + macAddress + " L2Cap is not connected.");
+            return;
+        }
+
+        File file = fileFromPath(path);
+        if (file == null) {
+            callbackContext.error(path + " is not a local file.");
+            return;
+        }
+
+        peripheral.sendFileL2Cap(callbackContext, psm, file);
+
+    }
+
+    private void receiveFileL2cap(CallbackContext callbackContext, String macAddress, int psm, String path, long length) {
+
+        Peripheral peripheral = peripherals.get(macAddress);
+
+        if (peripheral == null) {
+            callbackContext.error("Peripheral " + macAddress + " not found.");
+            return;
+        }
+
+        if (!peripheral.isL2capConnected(psm)) {
+            callbackContext.error("Peripheral " + macAddress + " L2Cap is not connected.");
+            return;
+        }
+
+        File file = fileFromPath(path);
+        if (file == null) {
+            callbackContext.error(path + " is not a local file.");
+            return;
+        }
+
+        peripheral.receiveFileL2Cap(callbackContext, psm, file, length);
+
+    }
+
+    // an absolute path or a file:// url
+    private File fileFromPath(String path) {
+        if (path.startsWith("file:")) {
+            try {
+                return new File(new URI(path));
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                return null;
+            }
+        }
+        return path.startsWith("/") ? new File(path) : null;
+    }
+
+    private void getL2CapStats(CallbackContext callbackContext, String macAddress, int psm) {
+
+        Peripheral peripheral = peripherals.get(macAddress);
+        JSONObject stats = peripheral != null ? peripheral.getL2CapStats(psm) : null;
+
+        if (stats == null) {
+            callbackContext.error("Peripheral " + macAddress + " L2Cap PSM " + psm + " was never opened.");
+            return;
+        }
+
+        callbackContext.success(stats);
+
+    }
+
+    private void registerNotifyCallback(CallbackContext callbackContext, String macAddress, UUID serviceUUID, UUID characteristicUUID, boolean persistent) {
 
         Peripheral peripheral = peripherals.get(macAddress);
         if (peripheral != null) {
@@ -1186,7 +1525,11 @@ public class BLECentralPlugin extends CordovaPlugin {
             }
 
             //peripheral.setOnDataCallback(serviceUUID, characteristicUUID, callbackContext);
-            peripheral.queueRegisterNotifyCallback(callbackContext, serviceUUID, characteristicUUID);
+            if (persistent) {
+                peripheral.queueRegisterPersistentNotifyCallback(callbackContext, serviceUUID, characteristicUUID);
+            } else {
+                peripheral.queueRegisterNotifyCallback(callbackContext, serviceUUID, characteristicUUID);
+            }
 
         } else {
 
@@ -1219,34 +1562,44 @@ public class BLECentralPlugin extends CordovaPlugin {
     private ScanCallback leScanCallback = new ScanCallback() {
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
-            LOG.w(TAG, "Scan Result");
             super.onScanResult(callbackType, result);
+            long traceStart = BLETrace.begin("BLE onScanResult");
+            try {
+                handleScanResult(callbackType, result);
+            } finally {
+                BLETrace.end("BLE onScanResult", result.getDevice().getAddress(), traceStart, result.getRssi());
+            }
+        }
+
+        private void handleScanResult(int callbackType, ScanResult result) {
+            BLELog.v("scanResult", result.getDevice().getAddress(), null, result.getRssi(), callbackType);
+            scanResults.incrementAndGet();
+            if (callbackType == ScanSettings.CALLBACK_TYPE_MATCH_LOST) {
+                presenceTracker.onLost(result.getDevice());
+            } else {
+                presenceTracker.onSeen(result.getDevice(), result.getRssi());
+            }
+
+            // the scheduler may keep an idle scan alive to avoid throttling, nobody is listening then
+            if (!scanScheduler.hasActiveSessions()) {
+                return;
+            }
+
             BluetoothDevice device = result.getDevice();
             String address = device.getAddress();
             boolean alreadyReported = peripherals.containsKey(address) && !peripherals.get(address).isUnscanned();
 
+            Peripheral peripheral;
             if (!alreadyReported) {
-
-                Peripheral peripheral = new Peripheral(device, result.getRssi(), result.getScanRecord().getBytes(), mFirebaseAnalytics);
+                peripheral = new Peripheral(device, result.getRssi(), result.getScanRecord().getBytes(), analytics, connectionManager);
                 peripherals.put(device.getAddress(), peripheral);
-
-                if (discoverCallback != null) {
-                    PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, peripheral.asJSONObject());
-                    pluginResult.setKeepCallback(true);
-                    discoverCallback.sendPluginResult(pluginResult);
-                }
-
             } else {
-                Peripheral peripheral = peripherals.get(address);
-                if (peripheral != null) {
-                    peripheral.update(result.getRssi(), result.getScanRecord().getBytes());
-                    if (reportDuplicates && discoverCallback != null) {
-                        PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, peripheral.asJSONObject());
-                        pluginResult.setKeepCallback(true);
-                        discoverCallback.sendPluginResult(pluginResult);
-                    }
-                }
+                peripheral = peripherals.get(address);
+                peripheral.update(result.getRssi(), result.getScanRecord().getBytes());
             }
+
+            // each scan session decides if the result is new or a duplicate for its caller
+            scanScheduler.dispatch(callbackType, result, peripheral);
         }
 
         @Override
@@ -1257,6 +1610,7 @@ public class BLECentralPlugin extends CordovaPlugin {
         @Override
         public void onScanFailed(int errorCode) {
             super.onScanFailed(errorCode);
+            // the scan scheduler handles failures of the scans it started
             Timber.i("Scan FAILED "  + errorCode);
         }
     };
@@ -1339,63 +1693,33 @@ public class BLECentralPlugin extends CordovaPlugin {
             return;
         }
 
-        // clear non-connected cached peripherals
-        for(Iterator<Map.Entry<String, Peripheral>> iterator = peripherals.entrySet().iterator(); iterator.hasNext(); ) {
-            Map.Entry<String, Peripheral> entry = iterator.next();
-            Peripheral device = entry.getValue();
-            boolean connecting = device.isConnecting();
-            if (connecting){
-                Timber.i("Not removing connecting device: " + device.getDevice().getAddress());
-            }
-            if(!entry.getValue().isConnected() && !connecting) {
-                iterator.remove();
-            }
-        }
-
-        discoverCallback = callbackContext;
-        final BluetoothLeScanner bluetoothLeScanner = bluetoothAdapter.getBluetoothLeScanner();
-        List<ScanFilter> filters = new ArrayList<ScanFilter>();
-        if (serviceUUIDs != null && serviceUUIDs.length > 0) {
-            for (UUID uuid : serviceUUIDs) {
-                ScanFilter filter = new ScanFilter.Builder().setServiceUuid(
-                        new ParcelUuid(uuid)).build();
-                filters.add(filter);
+        // clear non-connected cached peripherals, unless this scan joins one already in progress
+        if (!scanScheduler.hasActiveSessions()) {
+            for (Iterator<Map.Entry<String, Peripheral>> iterator = peripherals.entrySet().iterator(); iterator.hasNext(); ) {
+                Map.Entry<String, Peripheral> entry = iterator.next();
+                Peripheral device = entry.getValue();
+                boolean connecting = device.isConnecting();
+                if (connecting) {
+                    Timber.i("Not removing connecting device: " + device.getDevice().getAddress());
+                }
+                if (!entry.getValue().isConnected() && !connecting) {
+                    iterator.remove();
+                }
             }
         }
-        stopScanHandler.removeCallbacks(this::stopScan);
-        bluetoothLeScanner.startScan(filters, scanSettings, leScanCallback);
-
-        if (scanSeconds > 0) {
-            stopScanHandler.postDelayed(this::stopScan, scanSeconds * 1000);
-        }
 
         PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
         result.setKeepCallback(true);
         callbackContext.sendPluginResult(result);
+
+        // the scheduler merges this request with any running scan and keeps starts below the throttle limit
+        scanScheduler.startSession(callbackContext, serviceUUIDs, scanSeconds, scanSettings, reportDuplicates);
+        presenceTracker.onScanStarted();
     }
 
     private void stopScan() {
-        stopScanHandler.removeCallbacks(this::stopScan);
-        if (bluetoothAdapter.getState() == BluetoothAdapter.STATE_ON) {
-            Timber.i("Stopping Scan");
-            try {
-                final BluetoothLeScanner bluetoothLeScanner = bluetoothAdapter.getBluetoothLeScanner();
-                if (bluetoothLeScanner != null)
-                    bluetoothLeScanner.stopScan(leScanCallback);
-                JSONObject json = new JSONObject();
-                try {
-                    json.put("scanEnd", "scanEndSuccess");
-                } catch (JSONException e) {
-                    e.printStackTrace();
-                }
-                // Send the result indicating BLE scan is stopped now
-                PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, json);
-                pluginResult.setKeepCallback(true);
-                discoverCallback.sendPluginResult(pluginResult);
-            } catch (Exception e) {
-                Timber.e("Exception stopping scan %s", e.getMessage());
-            }
-        }
+        Timber.i("Stopping Scan");
+        scanScheduler.stopAllSessions();
     }
 
     private boolean locationServicesEnabled() {
@@ -1511,13 +1835,13 @@ public class BLECentralPlugin extends CordovaPlugin {
 
             case REQUEST_BLUETOOTH_CONNECT:
                 Timber.i("User granted Bluetooth Connect Access");
-                connect(callback, deviceMacAddress);
+                connect(callback, deviceMacAddress, deviceConnectOptions, deviceConnectRecipe);
                 this.deviceMacAddress = null;
                 break;
 
             case REQUEST_BLUETOOTH_CONNECT_AUTO:
                 Timber.i("User granted Bluetooth Auto Connect Access");
-                autoConnect(callback, deviceMacAddress);
+                autoConnect(callback, deviceMacAddress, deviceConnectOptions);
                 this.deviceMacAddress = null;
                 break;
 
@@ -14,6 +14,10 @@ class BLECommand {
     public static int REGISTER_NOTIFY = 10001;
     public static int REMOVE_NOTIFY = 10002;
     public static int READ_RSSI = 10003;
+    public static int SET_PREFERRED_PHY = 10004;
+    public static int READ_PHY = 10005;
+    public static int REGISTER_PERSISTENT_NOTIFY = 10006;
+    public static int DISCOVER_SERVICES = 10007; // queued by the plugin itself, no callback
     // BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
     // BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
 
@@ -23,6 +27,10 @@ class BLECommand {
     private byte[] data;
     private int type;
     private int psm;
+    private int txPhy;
+    private int rxPhy;
+    private int phyOptions;
+    private long queuedAt; // System.nanoTime
 
 
     public BLECommand(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, int type) {
@@ -53,6 +61,14 @@ class BLECommand {
         this.type = type;
     }
 
+    public BLECommand(CallbackContext callbackContext, int txPhy, int rxPhy, int phyOptions, int type) {
+        this.callbackContext = callbackContext;
+        this.txPhy = txPhy;
+        this.rxPhy = rxPhy;
+        this.phyOptions = phyOptions;
+        this.type = type;
+    }
+
     public int getType() {
         return type;
     }
@@ -74,4 +90,14 @@ class BLECommand {
     }
 
     public int getPSM() { return psm; }
+
+    public int getTxPhy() { return txPhy; }
+
+    public int getRxPhy() { return rxPhy; }
+
+    public int getPhyOptions() { return phyOptions; }
+
+    public long getQueuedAt() { return queuedAt; }
+
+    public void setQueuedAt(long queuedAt) { this.queuedAt = queuedAt; }
 }
@@ -0,0 +1,197 @@
+package com.megster.cordova.ble.central;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+/**
+ * Logging for the hot paths: commands, GATT callbacks, notifications and scan results. A call checks the level
+ * before anything is formatted, records that pass are kept as fields in a fixed-size ring buffer and only turned
+ * into text when they go to logcat or the app dumps the buffer.
+ *
+ * A record is an event name, the peripheral address, an optional detail like a characteristic UUID and two
+ * numbers whose meaning depends on the event, e.g. notify: value length, connectionState: gatt status and new
+ * state, state: ordinal of the previous state and the time spent in it.
+ */
+class BLELog {
+
+    static final int NONE = Log.ERROR + 1;
+    static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    // levels of android.util.Log, NONE turns a destination off
+    private static volatile int logcatLevel = Log.INFO;
+    private static volatile int bufferLevel = Log.DEBUG;
+    // the lower of the two, a single check rejects most calls
+    private static volatile int minLevel = Log.DEBUG;
+
+    // the records as fields, replaced as a whole when the size changes or the records are cleared
+    private static class Ring {
+        final long[] times;
+        final int[] priorities;
+        final String[] events;
+        final String[] addresses;
+        final Object[] details;
+        final long[] firstValues;
+        final long[] secondValues;
+        // records written so far, the next one goes to slot cursor % size
+        final AtomicLong cursor = new AtomicLong();
+
+        Ring(int size) {
+            times = new long[size];
+            priorities = new int[size];
+            events = new String[size];
+            addresses = new String[size];
+            details = new Object[size];
+            firstValues = new long[size];
+            secondValues = new long[size];
+        }
+    }
+
+    private static volatile Ring ring = new Ring(DEFAULT_BUFFER_SIZE);
+
+    static void v(String event, String address, Object detail, long a, long b) {
+        log(Log.VERBOSE, event, address, detail, a, b);
+    }
+
+    static void d(String event, String address, Object detail, long a, long b) {
+        log(Log.DEBUG, event, address, detail, a, b);
+    }
+
+    static void i(String event, String address, Object detail, long a, long b) {
+        log(Log.INFO, event, address, detail, a, b);
+    }
+
+    static void w(String event, String address, Object detail, long a, long b) {
+        log(Log.WARN, event, address, detail, a, b);
+    }
+
+    static void log(int priority, String event, String address, Object detail, long a, long b) {
+        if (priority < minLevel) {
+            return;
+        }
+        if (priority >= bufferLevel) {
+            record(priority, event, address, detail, a, b);
+        }
+        if (priority >= logcatLevel) {
+            Timber.log(priority, format(event, address, detail, a, b));
+        }
+    }
+
+    // no lock, a record claims its slot with one atomic increment. A dump at the same time may see a record
+    // that is still being written
+    private static void record(int priority, String event, String address, Object detail, long a, long b) {
+        Ring ring = BLELog.ring;
+        int slot = (int) (ring.cursor.getAndIncrement() % ring.times.length);
+        ring.times[slot] = SystemClock.elapsedRealtime();
+        ring.priorities[slot] = priority;
+        ring.events[slot] = event;
+        ring.addresses[slot] = address;
+        ring.details[slot] = detail;
+        ring.firstValues[slot] = a;
+        ring.secondValues[slot] = b;
+    }
+
+    private static String format(String event, String address, Object detail, long a, long b) {
+        StringBuilder builder = new StringBuilder(64).append(event);
+        if (address != null) {
+            builder.append(' ').append(address);
+        }
+        if (detail != null) {
+            builder.append(' ').append(detail);
+        }
+        return builder.append(' ').append(a).append(' ').append(b).toString();
+    }
+
+    /**
+     * Set the levels, 'verbose', 'debug', 'info', 'warn', 'error' or 'none', and the number of records kept.
+     * Changing the size drops the records.
+     */
+    static synchronized void configure(String logcat, String buffer, int size) {
+        // both are parsed first, an unknown level changes nothing
+        int newLogcatLevel = logcat != null ? parseLevel(logcat) : logcatLevel;
+        int newBufferLevel = buffer != null ? parseLevel(buffer) : bufferLevel;
+        logcatLevel = newLogcatLevel;
+        bufferLevel = newBufferLevel;
+        minLevel = Math.min(newLogcatLevel, newBufferLevel);
+        if (size > 0 && size != ring.times.length) {
+            ring = new Ring(size);
+        }
+    }
+
+    static int parseLevel(String level) {
+        switch (level) {
+            case "verbose":
+                return Log.VERBOSE;
+            case "debug":
+                return Log.DEBUG;
+            case "info":
+                return Log.INFO;
+            case "warn":
+                return Log.WARN;
+            case "error":
+                return Log.ERROR;
+            case "none":
+                return NONE;
+            default:
+                throw new IllegalArgumentException("Unknown log level " + level);
+        }
+    }
+
+    /**
+     * The records oldest first, [{ time: 1700000000000, level: 'D', event: 'notify', address, detail, a: 20, b: 0 }]
+     */
+    static synchronized JSONArray dump(boolean clear) {
+        JSONArray json = new JSONArray();
+        // the buffer keeps elapsedRealtime, the app gets wall clock time
+        long offset = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+        Ring ring = BLELog.ring;
+        int size = ring.times.length;
+        long written = ring.cursor.get();
+        try {
+            for (long i = Math.max(0, written - size); i < written; i++) {
+                int index = (int) (i % size);
+                JSONObject record = new JSONObject();
+                record.put("time", ring.times[index] + offset);
+                record.put("level", levelName(ring.priorities[index]));
+                record.put("event", ring.events[index]);
+                if (ring.addresses[index] != null) {
+                    record.put("address", ring.addresses[index]);
+                }
+                if (ring.details[index] != null) {
+                    record.put("detail", ring.details[index].toString());
+                }
+                record.put("a", ring.firstValues[index]);
+                record.put("b", ring.secondValues[index]);
+                json.put(record);
+            }
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        if (clear) {
+            BLELog.ring = new Ring(size);
+        }
+        return json;
+    }
+
+    private static String levelName(int priority) {
+        switch (priority) {
+            case Log.VERBOSE:
+                return "V";
+            case Log.DEBUG:
+                return "D";
+            case Log.INFO:
+                return "I";
+            case Log.WARN:
+                return "W";
+            default:
+                return "E";
+        }
+    }
+}
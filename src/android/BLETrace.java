@@ -0,0 +1,159 @@
+package com.megster.cordova.ble.central;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.Trace;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Trace sections of BLE operations, visible in Perfetto and systrace, and an optional timeline of the same
+ * operations that the app can export as Chrome trace JSON to profile sessions from the field offline.
+ *
+ * Synchronous sections wrap work on one thread, e.g. a command dispatch or an L2CAP delivery. Asynchronous
+ * sections span from a request to its callback, e.g. connectGatt to onConnectionStateChange, and are only
+ * sent to the system trace on API 29+, the timeline records them on every version.
+ */
+class BLETrace {
+
+    static final int DEFAULT_CAPACITY = 4096;
+
+    private static volatile boolean recording = false;
+    private static String[] names = new String[0];
+    private static String[] addresses = new String[0];
+    private static long[] starts = new long[0]; // System.nanoTime
+    private static long[] durations = new long[0];
+    private static long[] threads = new long[0];
+    private static long[] values = new long[0];
+    private static int next = 0;
+    private static int count = 0;
+    // System.currentTimeMillis - System.nanoTime / 1000000 when the timeline started
+    private static long clockOffsetMillis;
+
+    /**
+     * Start a section on this thread, returns the start time for end.
+     */
+    static long begin(String name) {
+        Trace.beginSection(name);
+        return System.nanoTime();
+    }
+
+    /**
+     * End the section this thread started last. value is shown with the event, e.g. the bytes delivered.
+     */
+    static void end(String name, String address, long start, long value) {
+        Trace.endSection();
+        if (recording) {
+            record(name, address, start, System.nanoTime() - start, Thread.currentThread().getId(), value);
+        }
+    }
+
+    // cookie tells overlapping sections of the same name apart, e.g. the hash of the peripheral address
+    static long beginAsync(String name, int cookie) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection(name, cookie);
+        }
+        return System.nanoTime();
+    }
+
+    static void endAsync(String name, int cookie, String address, long start, long value) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.endAsyncSection(name, cookie);
+        }
+        if (recording) {
+            // async events get the cookie as thread, so the viewer shows each peripheral on its own row
+            record(name, address, start, System.nanoTime() - start, -cookie, value);
+        }
+    }
+
+    /**
+     * Timeline only, an interval that was measured elsewhere, e.g. the time a command waited in the queue.
+     */
+    static void span(String name, String address, long start, long end, long value) {
+        if (recording) {
+            record(name, address, start, end - start, Thread.currentThread().getId(), value);
+        }
+    }
+
+    private static synchronized void record(String name, String address, long start, long duration, long thread, long value) {
+        if (!recording) {
+            return;
+        }
+        names[next] = name;
+        addresses[next] = address;
+        starts[next] = start;
+        durations[next] = duration;
+        threads[next] = thread;
+        values[next] = value;
+        next = (next + 1) % names.length;
+        if (count < names.length) {
+            count++;
+        }
+    }
+
+    /**
+     * Record the sections into a new timeline that keeps the last capacity events.
+     */
+    static synchronized void start(int capacity) {
+        int size = capacity > 0 ? capacity : DEFAULT_CAPACITY;
+        names = new String[size];
+        addresses = new String[size];
+        starts = new long[size];
+        durations = new long[size];
+        threads = new long[size];
+        values = new long[size];
+        next = 0;
+        count = 0;
+        clockOffsetMillis = System.currentTimeMillis() - System.nanoTime() / 1000000;
+        recording = true;
+    }
+
+    /**
+     * The timeline as Chrome trace JSON, { traceEvents: [{ name, cat: 'ble', ph: 'X', ts, dur, pid, tid, args }] }
+     * with times in microseconds. Stopping frees the timeline.
+     */
+    static synchronized JSONObject export(boolean stop) {
+        JSONObject json = new JSONObject();
+        JSONArray events = new JSONArray();
+        int start = (next - count + names.length) % Math.max(1, names.length);
+        try {
+            for (int i = 0; i < count; i++) {
+                int index = (start + i) % names.length;
+                JSONObject event = new JSONObject();
+                event.put("name", names[index]);
+                event.put("cat", "ble");
+                event.put("ph", "X");
+                // wall clock, so events line up with the app's own logs
+                event.put("ts", clockOffsetMillis * 1000 + starts[index] / 1000);
+                event.put("dur", durations[index] / 1000);
+                event.put("pid", Process.myPid());
+                event.put("tid", threads[index]);
+                JSONObject args = new JSONObject();
+                if (addresses[index] != null) {
+                    args.put("address", addresses[index]);
+                }
+                args.put("value", values[index]);
+                event.put("args", args);
+                events.put(event);
+            }
+            json.put("traceEvents", events);
+            json.put("displayTimeUnit", "ms");
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        if (stop) {
+            recording = false;
+            names = new String[0];
+            addresses = new String[0];
+            starts = new long[0];
+            durations = new long[0];
+            threads = new long[0];
+            values = new long[0];
+            next = 0;
+            count = 0;
+        }
+        return json;
+    }
+}
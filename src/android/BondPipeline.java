@@ -0,0 +1,160 @@
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+/**
+ * Bonds devices that must be bonded before connecting. Each device has its own request, so several devices
+ * can be onboarded at the same time without replacing each other's callbacks. A bond that fails or doesn't
+ * complete in time is retried before the listener is told it failed.
+ */
+class BondPipeline {
+
+    static final long DEFAULT_BOND_TIMEOUT_MILLIS = 30000;
+    static final int DEFAULT_BOND_ATTEMPTS = 2;
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    interface Listener {
+        void onBonded(BluetoothDevice device);
+        void onBondFailed(BluetoothDevice device, String message);
+    }
+
+    private class BondRequest {
+        final BluetoothDevice device;
+        Listener listener;
+        int attempt = 0;
+        final Runnable timeout = () -> onTimeout(this);
+        final Runnable retry = () -> startAttempt(this);
+
+        BondRequest(BluetoothDevice device, Listener listener) {
+            this.device = device;
+            this.listener = listener;
+        }
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    // key is the MAC Address
+    private final Map<String, BondRequest> requests = new HashMap<String, BondRequest>();
+    private long bondTimeoutMillis = DEFAULT_BOND_TIMEOUT_MILLIS;
+    private int bondAttempts = DEFAULT_BOND_ATTEMPTS;
+    private final AtomicLong retries = new AtomicLong();
+
+    synchronized void setBondTimeout(long bondTimeoutMillis) {
+        this.bondTimeoutMillis = bondTimeoutMillis;
+    }
+
+    synchronized void setBondAttempts(int bondAttempts) {
+        this.bondAttempts = Math.max(1, bondAttempts);
+    }
+
+    // bond attempts retried, for getMetrics
+    long getRetries(boolean reset) {
+        return reset ? retries.getAndSet(0) : retries.get();
+    }
+
+    /**
+     * Bond the device and call the listener once it is bonded. When the device is already being bonded,
+     * the listener replaces the previous one, which fails as superseded, and the running attempt continues.
+     */
+    synchronized void bond(BluetoothDevice device, Listener listener) {
+        BondRequest request = requests.get(device.getAddress());
+        if (request != null) {
+            Timber.i("Bond already in progress for %s", device.getAddress());
+            Listener superseded = request.listener;
+            request.listener = listener;
+            if (superseded != listener) {
+                handler.post(() -> superseded.onBondFailed(device, "Bonding superseded by a new request"));
+            }
+            return;
+        }
+        request = new BondRequest(device, listener);
+        requests.put(device.getAddress(), request);
+        startAttempt(request);
+    }
+
+    /**
+     * Called for every ACTION_BOND_STATE_CHANGED broadcast.
+     */
+    void onBondStateChanged(BluetoothDevice device, int bondState, int previousBondState) {
+        BondRequest request;
+        synchronized (this) {
+            request = requests.get(device.getAddress());
+            if (request == null) {
+                return;
+            }
+            if (bondState == BluetoothDevice.BOND_BONDED) {
+                finish(request);
+            } else if (bondState == BluetoothDevice.BOND_NONE && previousBondState == BluetoothDevice.BOND_BONDING) {
+                handler.removeCallbacks(request.timeout);
+                retryOrFail(request, "Bonding failed");
+                return;
+            } else {
+                return;
+            }
+        }
+        Timber.i("Bonded %s, connecting", device.getAddress());
+        request.listener.onBonded(device);
+    }
+
+    synchronized void clear() {
+        for (BondRequest request : requests.values()) {
+            handler.removeCallbacks(request.timeout);
+            handler.removeCallbacks(request.retry);
+        }
+        requests.clear();
+    }
+
+    private synchronized void startAttempt(BondRequest request) {
+        if (requests.get(request.device.getAddress()) != request) {
+            return;
+        }
+        request.attempt++;
+        Timber.i("Bonding %s, attempt %d of %d", request.device.getAddress(), request.attempt, bondAttempts);
+
+        if (request.device.getBondState() == BluetoothDevice.BOND_BONDED) {
+            // bonded in the meantime, e.g. by another app
+            finish(request);
+            handler.post(() -> request.listener.onBonded(request.device));
+            return;
+        }
+        if (request.device.getBondState() != BluetoothDevice.BOND_BONDING && !request.device.createBond()) {
+            retryOrFail(request, "Could not start bonding");
+            return;
+        }
+        handler.postDelayed(request.timeout, bondTimeoutMillis);
+    }
+
+    private synchronized void onTimeout(BondRequest request) {
+        if (requests.get(request.device.getAddress()) != request) {
+            return;
+        }
+        Timber.w("Bonding %s timed out after %d ms", request.device.getAddress(), bondTimeoutMillis);
+        retryOrFail(request, "Bonding timed out");
+    }
+
+    // called holding the lock
+    private void retryOrFail(BondRequest request, String message) {
+        if (request.attempt < bondAttempts) {
+            retries.incrementAndGet();
+            handler.postDelayed(request.retry, RETRY_DELAY_MILLIS);
+            return;
+        }
+        finish(request);
+        Timber.w("Giving up bonding %s: %s", request.device.getAddress(), message);
+        handler.post(() -> request.listener.onBondFailed(request.device, message));
+    }
+
+    // called holding the lock
+    private void finish(BondRequest request) {
+        handler.removeCallbacks(request.timeout);
+        handler.removeCallbacks(request.retry);
+        requests.remove(request.device.getAddress());
+    }
+}
@@ -0,0 +1,22 @@
+package com.megster.cordova.ble.central;
+
+import org.json.JSONObject;
+
+/**
+ * Options of connect, connectWithRecipe and autoConnect, e.g. { priority: 'high', timeout: 10000, phy: '2M' }
+ */
+class ConnectOptions {
+
+    final int priority; // ConnectionManager.PRIORITY_*
+    final long timeoutMillis; // 0 waits forever
+    final int phyMask; // 0 uses the device profile or lets the stack decide
+
+    ConnectOptions(JSONObject json, long defaultTimeoutMillis) {
+        if (json == null) {
+            json = new JSONObject();
+        }
+        priority = ConnectionManager.parsePriority(json.optString("priority", null));
+        timeoutMillis = json.optLong("timeout", defaultTimeoutMillis);
+        phyMask = DeviceProfile.parsePhyMask(json.optString("phy", null));
+    }
+}
@@ -0,0 +1,266 @@
+package com.megster.cordova.ble.central;
+
+import android.os.SystemClock;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import timber.log.Timber;
+
+/**
+ * The steps an app runs after every connect: request MTU, request connection priority and subscribe to
+ * notifications. The recipe runs them natively as soon as services are discovered and reports once, with
+ * the time each step took, instead of the app driving every step over the bridge. Notifications of the
+ * subscribed characteristics are sent to the recipe callback as "notification" events.
+ */
+class ConnectRecipe {
+
+    private static class Subscription {
+        final UUID serviceUUID;
+        final UUID characteristicUUID;
+
+        Subscription(UUID serviceUUID, UUID characteristicUUID) {
+            this.serviceUUID = serviceUUID;
+            this.characteristicUUID = characteristicUUID;
+        }
+    }
+
+    private final CallbackContext callbackContext;
+    private final int mtu; // 0 uses the device profile
+    private final int connectionPriority; // -1 uses the device profile
+    private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+
+    private Peripheral peripheral;
+    // incremented for every run, results of an earlier run are ignored
+    private int generation = 0;
+    private long startedAt;
+    private long stepStartedAt;
+    private JSONObject timings = new JSONObject();
+    private JSONArray errors = new JSONArray();
+    private int negotiatedMtu;
+    private int pendingSubscriptions;
+    // what ready sent last, null until the recipe finished for the current connection
+    private JSONObject result;
+
+    /**
+     * { mtu: 185, connectionPriority: 'high', notifications: [{ service: '180d', characteristic: '2a37' }] }
+     */
+    ConnectRecipe(CallbackContext callbackContext, JSONObject json) throws JSONException {
+        this.callbackContext = callbackContext;
+        this.mtu = json.optInt("mtu", 0);
+        this.connectionPriority = json.has("connectionPriority")
+                ? Helper.parseConnectionPriority(json.getString("connectionPriority"))
+                : -1;
+
+        JSONArray notifications = json.optJSONArray("notifications");
+        if (notifications != null) {
+            for (int i = 0; i < notifications.length(); i++) {
+                JSONObject notification = notifications.getJSONObject(i);
+                subscriptions.add(new Subscription(
+                        UUIDHelper.uuidFromString(notification.getString("service")),
+                        UUIDHelper.uuidFromString(notification.getString("characteristic"))));
+            }
+        }
+    }
+
+    // a connect attempt started, by the app, a reconnect or restore
+    synchronized void start(Peripheral peripheral) {
+        this.peripheral = peripheral;
+        startedAt = SystemClock.elapsedRealtime();
+        stepStartedAt = startedAt;
+        timings = new JSONObject();
+        result = null;
+    }
+
+    // the result of the current connection, null while the recipe hasn't finished
+    synchronized JSONObject getResult() {
+        return result;
+    }
+
+    // record the time since the previous step finished
+    synchronized void stepDone(String step) {
+        long now = SystemClock.elapsedRealtime();
+        try {
+            timings.put(step, now - stepStartedAt);
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        stepStartedAt = now;
+    }
+
+    // services were discovered, run the post-connect steps
+    synchronized void run() {
+        generation++;
+        errors = new JSONArray();
+        negotiatedMtu = 0;
+        stepDone("discover");
+
+        // the device profile fills in what the recipe leaves out
+        DeviceProfile profile = DeviceProfile.get(peripheral.getDevice());
+        int mtu = this.mtu > 0 ? this.mtu : profile.mtu;
+        int connectionPriority = this.connectionPriority >= 0 ? this.connectionPriority : profile.connectionPriority;
+
+        if (mtu > 0) {
+            final int runGeneration = generation;
+            peripheral.requestMtu(new StepCallback() {
+                @Override
+                void onResult(boolean success, String message) {
+                    synchronized (ConnectRecipe.this) {
+                        if (runGeneration != generation) {
+                            return;
+                        }
+                        if (success) {
+                            negotiatedMtu = Integer.parseInt(message);
+                        } else {
+                            addError("mtu", message);
+                        }
+                        stepDone("mtu");
+                        requestConnectionPriority(connectionPriority);
+                    }
+                }
+            }, mtu);
+        } else {
+            requestConnectionPriority(connectionPriority);
+        }
+    }
+
+    private void requestConnectionPriority(int connectionPriority) {
+        if (connectionPriority >= 0) {
+            peripheral.requestConnectionPriority(connectionPriority);
+            stepDone("priority");
+        }
+        subscribe();
+    }
+
+    private void subscribe() {
+        if (subscriptions.isEmpty()) {
+            ready();
+            return;
+        }
+        pendingSubscriptions = subscriptions.size();
+        for (Subscription subscription : subscriptions) {
+            peripheral.queueRegisterNotifyCallback(new SubscriptionCallback(subscription, generation),
+                    subscription.serviceUUID, subscription.characteristicUUID);
+        }
+    }
+
+    private synchronized void onSubscribed(int runGeneration, Subscription subscription, boolean success, String message) {
+        if (runGeneration != generation) {
+            return;
+        }
+        if (!success) {
+            addError(UUIDHelper.uuidToString(subscription.characteristicUUID), message);
+        }
+        pendingSubscriptions--;
+        if (pendingSubscriptions == 0) {
+            stepDone("subscribe");
+            ready();
+        }
+    }
+
+    private void ready() {
+        JSONObject json = peripheral.asJSONObject(peripheral.gatt);
+        try {
+            timings.put("total", SystemClock.elapsedRealtime() - startedAt);
+            json.put("timings", timings);
+            if (negotiatedMtu > 0) {
+                json.put("mtu", negotiatedMtu);
+            }
+            if (errors.length() > 0) {
+                json.put("errors", errors);
+            }
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        Timber.i("Connect recipe for %s ready %s", peripheral.getDevice().getAddress(), timings);
+        result = json;
+
+        PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, json);
+        pluginResult.setKeepCallback(true);
+        callbackContext.sendPluginResult(pluginResult);
+        peripheral.onRecipeReady();
+    }
+
+    private void addError(String step, String message) {
+        JSONObject error = new JSONObject();
+        try {
+            error.put("step", step);
+            error.put("errorMessage", message);
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        errors.put(error);
+    }
+
+    /**
+     * Receives the results the command code would send to the app, so the recipe can reuse it.
+     */
+    private abstract class StepCallback extends CallbackContext {
+
+        StepCallback() {
+            super(callbackContext.getCallbackId(), null);
+        }
+
+        @Override
+        public void sendPluginResult(PluginResult result) {
+            if (result.getStatus() == PluginResult.Status.OK.ordinal()) {
+                onResult(true, result.getMessage());
+            } else if (result.getStatus() != PluginResult.Status.NO_RESULT.ordinal()) {
+                onResult(false, result.getMessage());
+            }
+        }
+
+        abstract void onResult(boolean success, String message);
+    }
+
+    class SubscriptionCallback extends StepCallback {
+        private final Subscription subscription;
+        private final int runGeneration;
+        private boolean completed = false;
+
+        SubscriptionCallback(Subscription subscription, int runGeneration) {
+            this.subscription = subscription;
+            this.runGeneration = runGeneration;
+        }
+
+        @Override
+        void onResult(boolean success, String message) {
+            // only the first result completes the subscription
+            if (!completed) {
+                completed = true;
+                onSubscribed(runGeneration, subscription, success, message);
+            }
+        }
+
+        // forwards notifications to the recipe callback
+        SequentialCallbackContext notificationCallback() {
+            return new SequentialCallbackContext(this) {
+                private int sequence = 0;
+
+                @Override
+                public void sendSequentialResult(byte[] data) {
+                    JSONObject json = new JSONObject();
+                    try {
+                        json.put("event", "notification");
+                        json.put("service", UUIDHelper.uuidToString(subscription.serviceUUID));
+                        json.put("characteristic", UUIDHelper.uuidToString(subscription.characteristicUUID));
+                        json.put("value", Peripheral.byteArrayToJSON(data));
+                        json.put("sequence", sequence++);
+                    } catch (JSONException e) { // this shouldn't happen
+                        e.printStackTrace();
+                    }
+                    PluginResult result = new PluginResult(PluginResult.Status.OK, json);
+                    result.setKeepCallback(true);
+                    callbackContext.sendPluginResult(result);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package com.megster.cordova.ble.central;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import timber.log.Timber;
+
+/**
+ * Coordinates GATT connections across all peripherals. Android caps the number of concurrent GATT
+ * connections and concurrent connectGatt calls are a known cause of status 133, so connection
+ * establishment is serialized, the number of links is capped and waiting requests are served by priority.
+ * When all slots are taken, an idle link with a lower priority is disconnected to make room.
+ * It also owns the reconnect policy and the connection events channel shared by all peripherals.
+ */
+class ConnectionManager {
+
+    static final int PRIORITY_LOW = 0;
+    static final int PRIORITY_NORMAL = 1;
+    static final int PRIORITY_HIGH = 2;
+
+    static final int DEFAULT_MAX_CONNECTIONS = 7;
+    static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 10000;
+    static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 15000;
+
+    private static class ConnectRequest implements Comparable<ConnectRequest> {
+        final Peripheral peripheral;
+        final int priority;
+        final long sequence;
+
+        ConnectRequest(Peripheral peripheral, int priority, long sequence) {
+            this.peripheral = peripheral;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(ConnectRequest other) {
+            if (priority != other.priority) {
+                return other.priority - priority; // higher priority first
+            }
+            return Long.compare(sequence, other.sequence); // then first come first served
+        }
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable processRunnable = this::processQueue;
+    private final Runnable establishTimeoutRunnable = this::onEstablishTimeout;
+
+    private final PriorityQueue<ConnectRequest> queue = new PriorityQueue<ConnectRequest>();
+    // peripherals holding a connection slot and their priority
+    private final Map<Peripheral, Integer> active = new LinkedHashMap<Peripheral, Integer>();
+    // the peripheral whose connectGatt is in flight
+    private Peripheral establishing;
+    // peripherals told to disconnect for a slot, they keep it until they release it
+    private final Set<Peripheral> evicting = new HashSet<Peripheral>();
+    private long sequence = 0;
+
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private long connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private boolean restoreConnections = false;
+
+    private final ReconnectPolicy reconnectPolicy = new ReconnectPolicy();
+    private CallbackContext eventCallback;
+
+    static int parsePriority(String priority) {
+        if ("high".equals(priority)) {
+            return PRIORITY_HIGH;
+        } else if ("low".equals(priority)) {
+            return PRIORITY_LOW;
+        }
+        return PRIORITY_NORMAL;
+    }
+
+    synchronized void setMaxConnections(int maxConnections) {
+        this.maxConnections = Math.max(1, maxConnections);
+        handler.post(processRunnable);
+    }
+
+    synchronized void setIdleTimeout(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    // 0 disables the deadline
+    synchronized void setConnectTimeout(long connectTimeoutMillis) {
+        this.connectTimeoutMillis = Math.max(0, connectTimeoutMillis);
+    }
+
+    synchronized long getConnectTimeout() {
+        return connectTimeoutMillis;
+    }
+
+    // reconnect peripherals that were connected when Bluetooth turned off once it is back on
+    synchronized void setRestoreConnections(boolean restoreConnections) {
+        this.restoreConnections = restoreConnections;
+    }
+
+    synchronized boolean isRestoreConnections() {
+        return restoreConnections;
+    }
+
+    ReconnectPolicy getReconnectPolicy() {
+        return reconnectPolicy;
+    }
+
+    synchronized boolean hasEventCallback() {
+        return eventCallback != null;
+    }
+
+    synchronized void setEventCallback(CallbackContext callbackContext) {
+        this.eventCallback = callbackContext;
+    }
+
+    synchronized void removeEventCallback() {
+        if (eventCallback != null) {
+            // Clear callback in JavaScript without actually calling it
+            PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+            result.setKeepCallback(false);
+            eventCallback.sendPluginResult(result);
+            eventCallback = null;
+        }
+    }
+
+    /**
+     * Report a connection event, e.g. a reconnect attempt, to the app. The details are sent along with the
+     * peripheral id and the event name.
+     */
+    synchronized void sendEvent(String event, Peripheral peripheral, JSONObject details) {
+        if (eventCallback == null) {
+            return;
+        }
+        JSONObject json = details != null ? details : new JSONObject();
+        try {
+            json.put("id", peripheral.getDevice().getAddress());
+            json.put("event", event);
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        PluginResult result = new PluginResult(PluginResult.Status.OK, json);
+        result.setKeepCallback(true);
+        eventCallback.sendPluginResult(result);
+    }
+
+    /**
+     * Queue a connection attempt. The peripheral's gattConnect is called once it is this request's turn
+     * and a connection slot is available.
+     */
+    synchronized void enqueue(Peripheral peripheral, int priority) {
+        removeQueued(peripheral);
+        queue.add(new ConnectRequest(peripheral, priority, sequence++));
+        handler.post(processRunnable);
+    }
+
+    // the connectGatt in flight finished, successfully or not
+    synchronized void onConnectAttemptFinished(Peripheral peripheral) {
+        if (establishing == peripheral) {
+            establishing = null;
+            handler.removeCallbacks(establishTimeoutRunnable);
+            handler.post(processRunnable);
+        }
+    }
+
+    // a direct connect without a deadline, e.g. autoConnect, waits for the native timeout and its retries,
+    // it keeps its connection slot but lets the next peripheral call connectGatt after a bounded time
+    private synchronized void onEstablishTimeout() {
+        if (establishing != null) {
+            Timber.i("%s is still connecting, letting the next peripheral connect", establishing.getDevice().getAddress());
+            establishing = null;
+            handler.post(processRunnable);
+        }
+    }
+
+    // the peripheral closed its gatt, its slot is free again
+    synchronized void release(Peripheral peripheral) {
+        removeQueued(peripheral);
+        evicting.remove(peripheral);
+        boolean changed = active.remove(peripheral) != null;
+        if (establishing == peripheral) {
+            establishing = null;
+            handler.removeCallbacks(establishTimeoutRunnable);
+            changed = true;
+        }
+        if (changed) {
+            handler.post(processRunnable);
+        }
+    }
+
+    private void removeQueued(Peripheral peripheral) {
+        for (Iterator<ConnectRequest> iterator = queue.iterator(); iterator.hasNext(); ) {
+            if (iterator.next().peripheral == peripheral) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void processQueue() {
+        ConnectRequest next;
+        Peripheral victim = null;
+
+        synchronized (this) {
+            if (establishing != null) {
+                return;
+            }
+            next = queue.peek();
+            if (next == null) {
+                return;
+            }
+
+            if (!active.containsKey(next.peripheral) && active.size() >= maxConnections) {
+                if (!evicting.isEmpty()) {
+                    // a slot is on its way, the victim releases it as it disconnects
+                    return;
+                }
+                victim = findEvictionCandidate(next.priority);
+                if (victim == null) {
+                    Timber.i("All %d connection slots in use, %s waits", maxConnections, next.peripheral.getDevice().getAddress());
+                    return;
+                }
+                // the victim keeps its slot until its disconnect releases it, which processes the queue again
+                evicting.add(victim);
+                next = null;
+            } else {
+                queue.poll();
+                active.put(next.peripheral, next.priority);
+                establishing = next.peripheral;
+            }
+        }
+
+        if (victim != null) {
+            Timber.i("Disconnecting idle peripheral %s to free a connection slot", victim.getDevice().getAddress());
+            victim.evict();
+            return;
+        }
+
+        next.peripheral.gattConnect();
+        if (next.peripheral.isAutoconnect()) {
+            // background auto connect can take forever, don't hold up other peripherals
+            onConnectAttemptFinished(next.peripheral);
+        } else {
+            handler.postDelayed(establishTimeoutRunnable, getEstablishTimeout());
+        }
+    }
+
+    // the connect timeout, or its default when the deadline is disabled
+    private synchronized long getEstablishTimeout() {
+        return connectTimeoutMillis > 0 ? connectTimeoutMillis : DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    }
+
+    // lowest priority first, then the longest idle
+    private Peripheral findEvictionCandidate(int priority) {
+        long now = SystemClock.elapsedRealtime();
+        Peripheral candidate = null;
+        int candidatePriority = Integer.MAX_VALUE;
+        long candidateActivity = Long.MAX_VALUE;
+
+        for (Map.Entry<Peripheral, Integer> entry : active.entrySet()) {
+            Peripheral peripheral = entry.getKey();
+            int peripheralPriority = entry.getValue();
+            long lastActivity = peripheral.getLastActivity();
+            if (peripheralPriority >= priority || !peripheral.isConnected() || now - lastActivity < idleTimeoutMillis) {
+                continue;
+            }
+            if (peripheralPriority < candidatePriority
+                    || (peripheralPriority == candidatePriority && lastActivity < candidateActivity)) {
+                candidate = peripheral;
+                candidatePriority = peripheralPriority;
+                candidateActivity = lastActivity;
+            }
+        }
+        return candidate;
+    }
+}
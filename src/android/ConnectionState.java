@@ -0,0 +1,148 @@
+package com.megster.cordova.ble.central;
+
+import android.os.SystemClock;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+
+/**
+ * The connection state of a peripheral. Every transition is timestamped so the time a device spends waiting
+ * for a connection, discovering services or backing off can be profiled per device. Changed on the
+ * peripheral's loop only, the plugin reads it for isConnected and getConnectionTimings.
+ *
+ * IDLE -> CONNECTING -> DISCOVERING -> READY -> DISCONNECTING -> IDLE, BACKOFF waits for a reconnect attempt.
+ */
+class ConnectionState {
+
+    enum State {
+        IDLE,
+        CONNECTING, // waiting for a connection slot or for connectGatt
+        DISCOVERING,
+        READY,
+        DISCONNECTING,
+        BACKOFF // disconnected unexpectedly, a reconnect is scheduled
+    }
+
+    static final int MAX_TRANSITIONS = 32;
+
+    private static class Transition {
+        final State from;
+        final State to;
+        final long at; // wall clock, to line up with the app's logs
+        final long duration; // time spent in the previous state
+
+        Transition(State from, State to, long at, long duration) {
+            this.from = from;
+            this.to = to;
+            this.at = at;
+            this.duration = duration;
+        }
+    }
+
+    private final String address;
+    private volatile State state = State.IDLE;
+    private long since = SystemClock.elapsedRealtime();
+    private final ArrayDeque<Transition> transitions = new ArrayDeque<Transition>();
+
+    private long connectStartedAt = -1; // left IDLE, reconnects are part of the same attempt
+    private long lastConnectMillis = -1; // IDLE to READY
+    private long lastDiscoveryMillis = -1; // DISCOVERING to READY
+    private int connects = 0;
+    private int backoffs = 0;
+
+    ConnectionState(String address) {
+        this.address = address;
+    }
+
+    State get() {
+        return state;
+    }
+
+    boolean is(State state) {
+        return this.state == state;
+    }
+
+    // false until the peripheral left IDLE for the first time
+    synchronized boolean hasHistory() {
+        return !transitions.isEmpty();
+    }
+
+    /**
+     * Move to the next state, returns false when already in it.
+     */
+    synchronized boolean moveTo(State next) {
+        State previous = state;
+        if (previous == next) {
+            return false;
+        }
+        long now = SystemClock.elapsedRealtime();
+        long duration = now - since;
+        BLELog.i("state", address, next, previous.ordinal(), duration);
+
+        if (transitions.size() == MAX_TRANSITIONS) {
+            transitions.removeFirst();
+        }
+        transitions.addLast(new Transition(previous, next, System.currentTimeMillis(), duration));
+
+        if (previous == State.IDLE) {
+            connectStartedAt = now;
+        }
+        if (next == State.BACKOFF) {
+            backoffs++;
+        }
+        if (next == State.READY) {
+            if (previous == State.DISCOVERING) {
+                lastDiscoveryMillis = duration;
+            }
+            if (connectStartedAt >= 0) {
+                lastConnectMillis = now - connectStartedAt;
+                connectStartedAt = -1;
+                connects++;
+            }
+        }
+        if (next == State.IDLE) {
+            connectStartedAt = -1;
+        }
+
+        state = next;
+        since = now;
+        return true;
+    }
+
+    /**
+     * { state: 'READY', since: 5000, lastConnect: 850, lastDiscovery: 320, connects: 1, backoffs: 0,
+     *   transitions: [{ from: 'IDLE', to: 'CONNECTING', at: 1700000000000, duration: 12000 }] }
+     */
+    synchronized JSONObject asJSONObject() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("state", state.name());
+            json.put("since", SystemClock.elapsedRealtime() - since);
+            if (lastConnectMillis >= 0) {
+                json.put("lastConnect", lastConnectMillis);
+            }
+            if (lastDiscoveryMillis >= 0) {
+                json.put("lastDiscovery", lastDiscoveryMillis);
+            }
+            json.put("connects", connects);
+            json.put("backoffs", backoffs);
+
+            JSONArray history = new JSONArray();
+            for (Transition transition : transitions) {
+                JSONObject item = new JSONObject();
+                item.put("from", transition.from.name());
+                item.put("to", transition.to.name());
+                item.put("at", transition.at);
+                item.put("duration", transition.duration);
+                history.put(item);
+            }
+            json.put("transitions", history);
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        return json;
+    }
+}
@@ -0,0 +1,152 @@
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Device specific connection tuning, e.g. which devices must be bonded before connecting. Profiles are
+ * loaded once from the bundled device_profiles.json asset, keyed by SupportedPeripherals name, so a
+ * connection finds its profile with one map lookup after the device name was matched.
+ *
+ * A profile with nameContains applies to the device names that contain it instead, matched or not, e.g. the
+ * bond quirks that were checked against "TAIDOC TD8255" and "Nonin3230" anywhere in the name.
+ */
+class DeviceProfile {
+
+    static final String ASSET_NAME = "device_profiles.json";
+
+    // used for devices without a profile, changes nothing
+    static final DeviceProfile DEFAULT = new DeviceProfile();
+
+    private static final Map<SupportedPeripherals, DeviceProfile> profiles =
+            new EnumMap<SupportedPeripherals, DeviceProfile>(SupportedPeripherals.class);
+    private static final List<DeviceProfile> namedProfiles = new ArrayList<DeviceProfile>();
+    private static boolean loaded = false;
+
+    final int mtu; // 0 leaves the default
+    final int connectionPriority; // -1 leaves the default
+    final int phyMask; // 0 leaves the default, else BluetoothDevice.PHY_LE_*_MASK bits
+    final boolean bondBeforeConnect;
+    final boolean nativePairing;
+    final ReconnectPolicy.Rule reconnectRule; // null uses the reconnect policy
+    final long commandTimeoutMillis; // 0 waits forever
+    final String nameContains; // null applies to every device the SupportedPeripherals pattern matches
+
+    private DeviceProfile() {
+        mtu = 0;
+        connectionPriority = -1;
+        phyMask = 0;
+        bondBeforeConnect = false;
+        nativePairing = true;
+        reconnectRule = null;
+        commandTimeoutMillis = 0;
+        nameContains = null;
+    }
+
+    private DeviceProfile(JSONObject json) throws JSONException {
+        mtu = json.optInt("mtu", 0);
+        connectionPriority = json.has("connectionPriority")
+                ? Helper.parseConnectionPriority(json.getString("connectionPriority"))
+                : -1;
+        phyMask = parsePhyMask(json.optString("phy", null));
+        bondBeforeConnect = json.optBoolean("bondBeforeConnect", false);
+        nativePairing = json.optBoolean("nativePairing", true);
+        JSONObject reconnect = json.optJSONObject("reconnect");
+        reconnectRule = reconnect != null ? ReconnectPolicy.parseRule(reconnect) : null;
+        commandTimeoutMillis = json.optLong("commandTimeout", 0);
+        nameContains = json.optString("nameContains", null);
+    }
+
+    // "1M", "2M" or "coded", several can be combined like "2M|1M"
+    static int parsePhyMask(String phy) {
+        int mask = 0;
+        if (phy != null) {
+            for (String value : phy.split("\\|")) {
+                if ("1M".equalsIgnoreCase(value)) {
+                    mask |= BluetoothDevice.PHY_LE_1M_MASK;
+                } else if ("2M".equalsIgnoreCase(value)) {
+                    mask |= BluetoothDevice.PHY_LE_2M_MASK;
+                } else if ("coded".equalsIgnoreCase(value)) {
+                    mask |= BluetoothDevice.PHY_LE_CODED_MASK;
+                }
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Reads the profiles asset, only the first call does any work.
+     */
+    static synchronized void load(Context context) {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+
+        try {
+            JSONObject json = new JSONObject(readAsset(context, ASSET_NAME));
+            for (Iterator<String> keys = json.keys(); keys.hasNext(); ) {
+                String key = keys.next();
+                try {
+                    DeviceProfile profile = new DeviceProfile(json.getJSONObject(key));
+                    profiles.put(SupportedPeripherals.valueOf(key), profile);
+                    if (profile.nameContains != null) {
+                        namedProfiles.add(profile);
+                    }
+                } catch (IllegalArgumentException e) {
+                    Timber.w("Ignoring profile for unknown device %s", key);
+                }
+            }
+            Timber.i("Loaded %d device profiles", profiles.size());
+        } catch (IOException | JSONException e) {
+            Timber.e("Could not load device profiles %s", e.getMessage());
+        }
+    }
+
+    private static String readAsset(Context context, String name) throws IOException {
+        InputStream inputStream = context.getAssets().open(name);
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+            return outputStream.toString("UTF-8");
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static DeviceProfile get(SupportedPeripherals supportedPeripheral) {
+        DeviceProfile profile = supportedPeripheral != null ? profiles.get(supportedPeripheral) : null;
+        // a profile limited to some names doesn't apply to the rest of the family
+        return profile != null && profile.nameContains == null ? profile : DEFAULT;
+    }
+
+    static synchronized DeviceProfile get(BluetoothDevice device) {
+        String name = device != null ? device.getName() : null;
+        if (name != null) {
+            for (DeviceProfile profile : namedProfiles) {
+                if (name.contains(profile.nameContains)) {
+                    return profile;
+                }
+            }
+        }
+        return get(SupportedPeripherals.findMatchingDevice(device));
+    }
+}
@@ -14,6 +14,7 @@
 
 package com.megster.cordova.ble.central;
 
+import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import org.json.JSONArray;
@@ -154,5 +155,15 @@ public class Helper {
         return props;
     }
 
+    // "high", "balanced" or "low" as used by requestConnectionPriority
+    public static int parseConnectionPriority(String priority) {
+        if ("low".equals(priority)) {
+            return BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
+        } else if ("high".equals(priority)) {
+            return BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+        }
+        return BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    }
+
 }
 
@@ -3,18 +3,27 @@ package com.megster.cordova.ble.central;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 import android.os.Build;
+import android.os.SystemClock;
 import androidx.annotation.RequiresApi;
 
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.LOG;
 import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 import timber.log.Timber;
 
 class L2CAPContext {
@@ -23,25 +32,61 @@ class L2CAPContext {
     private final Object updateLock = new Object();
     private final int psm;
     private final BluetoothDevice device;
-    private final ExecutorService executor;
 
-    private BluetoothSocket socket;
+    private volatile BluetoothSocket socket;
     private CallbackContext l2capReceiver;
     private CallbackContext l2capConnectContext;
+    private L2CAPOptions options;
+
+    // receive statistics since the channel connected, written by the reader thread only
+    private volatile long connectedAt;
+    private volatile long bytesReceived;
+    private volatile long reads;
+    private volatile long deliveries;
+
+    // writes waiting for the writer thread, in order
+    private final Object writeLock = new Object();
+    private final ArrayDeque<byte[]> writeQueue = new ArrayDeque<byte[]>();
+    // writes accepted above the high watermark, answered once the queue drained to the low watermark
+    private final List<CallbackContext> blockedWrites = new ArrayList<CallbackContext>();
+    private long queuedBytes;
+    private boolean writerRunning;
+
+    // a file being received, the reader writes to it instead of sending the bytes to the app
+    private L2CAPFileTransfer receiveTransfer;
+    private OutputStream receiveFile;
+
+    // send statistics since the channel connected, written by the writer thread only
+    private volatile long bytesSent;
+    private volatile long frames;
 
     public L2CAPContext(BluetoothDevice device, int psm) {
         this.psm = psm;
         this.device = device;
-        this.executor = Executors.newSingleThreadExecutor();
+        try {
+            this.options = new L2CAPOptions(null);
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
     }
 
-    public void connectL2cap(CallbackContext callbackContext, boolean secureChannel) {
+    public void connectL2cap(CallbackContext callbackContext, L2CAPOptions options) {
         try {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
                 disconnectL2Cap();
-                socket = secureChannel ? device.createL2capChannel(psm) : device.createInsecureL2capChannel(psm);
+                this.options = options;
+                socket = options.secureChannel ? device.createL2capChannel(psm) : device.createInsecureL2capChannel(psm);
                 socket.connect();
-                executor.submit(this::readL2CapData);
+                resetStats();
+                try {
+                    L2CAPExecutor.execute(this::readL2CapData);
+                } catch (RejectedExecutionException e) {
+                    Timber.e("No thread left to read L2Cap PSM %d", psm);
+                    socket.close();
+                    socket = null;
+                    callbackContext.error("Too many open L2Cap channels");
+                    return;
+                }
 
                 PluginResult result = new PluginResult(PluginResult.Status.OK);
                 result.setKeepCallback(true);
@@ -83,6 +128,15 @@ class L2CAPContext {
         if (callback != null) {
             callback.error(message);
         }
+        failWrites("L2CAP PSM " + psm + " disconnected");
+        // a receive without a length ends when the peer closes the channel
+        L2CAPFileTransfer transfer;
+        synchronized (updateLock) {
+            transfer = receiveTransfer;
+        }
+        if (transfer != null) {
+            endReceiveFile(transfer.getTotal() > 0 ? message : null);
+        }
     }
 
     public void registerL2CapReceiver(CallbackContext callbackContext) {
@@ -91,46 +145,435 @@ class L2CAPContext {
         }
     }
 
+    /**
+     * Queue the data for the writer thread, the caller never blocks. The write is answered right away while
+     * the queue is below writeHighWatermark, above it the answer waits until the queue drained to
+     * writeLowWatermark, so an app awaiting every write slows down to the speed of the link.
+     */
     public void writeL2CapChannel(CallbackContext callbackContext, byte[] data) {
-        if (socket == null || !socket.isConnected()) {
+        if (!isConnected()) {
             callbackContext.error("L2CAP PSM " + psm + " not connected.");
             return;
         }
 
-        try {
-            OutputStream outputStream = socket.getOutputStream();
-            outputStream.write(data);
+        boolean blocked;
+        boolean startWriter;
+        synchronized (writeLock) {
+            writeQueue.add(data);
+            queuedBytes += data.length;
+            blocked = queuedBytes > options.writeHighWatermark;
+            if (blocked) {
+                blockedWrites.add(callbackContext);
+            }
+            startWriter = !writerRunning;
+            writerRunning = true;
+        }
+
+        // the writer is started before the write is answered, a rejected writer fails the write instead
+        if (startWriter) {
+            try {
+                L2CAPExecutor.executeWrite(this::writeL2CapData);
+            } catch (RejectedExecutionException e) {
+                Timber.e("Could not start the writer of L2Cap PSM %d", psm);
+                synchronized (writeLock) {
+                    writerRunning = false;
+                }
+                String message = "L2CAP PSM " + psm + " writer stopped";
+                failWrites(message);
+                if (!blocked) {
+                    callbackContext.error(message);
+                }
+                return;
+            }
+        }
+        if (!blocked) {
             callbackContext.success();
+        }
+    }
+
+    // drains the write queue, then the thread is returned to the executor
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void writeL2CapData() {
+        byte[] frame = null;
+        while (true) {
+            BluetoothSocket lSocket = this.socket;
+            byte[] data;
+            int length;
+            synchronized (writeLock) {
+                if (writeQueue.isEmpty() || lSocket == null) {
+                    writerRunning = false;
+                    return;
+                }
+                int frameSize = lSocket.getMaxTransmitPacketSize();
+                if (options.coalesceWrites && writeQueue.peek().length < frameSize) {
+                    // small writes are sent together, up to one packet
+                    if (frame == null || frame.length != frameSize) {
+                        frame = new byte[frameSize];
+                    }
+                    length = 0;
+                    while (!writeQueue.isEmpty() && length + writeQueue.peek().length <= frameSize) {
+                        byte[] next = writeQueue.poll();
+                        System.arraycopy(next, 0, frame, length, next.length);
+                        length += next.length;
+                    }
+                    data = frame;
+                } else {
+                    data = writeQueue.poll();
+                    length = data.length;
+                }
+            }
+
+            try {
+                OutputStream outputStream = lSocket.getOutputStream();
+                outputStream.write(data, 0, length);
+            } catch (IOException e) {
+                Timber.e("L2Cap write failed %s", e.getMessage());
+                synchronized (writeLock) {
+                    writerRunning = false;
+                }
+                failWrites("L2CAP write failed");
+                if (this.socket == lSocket) {
+                    disconnectL2Cap("L2Cap write pipe broken");
+                }
+                return;
+            }
+            bytesSent += length;
+            frames++;
+
+            List<CallbackContext> released = null;
+            synchronized (writeLock) {
+                // failWrites may have emptied the queue meanwhile
+                queuedBytes = Math.max(0, queuedBytes - length);
+                if (!blockedWrites.isEmpty() && queuedBytes <= options.writeLowWatermark) {
+                    released = new ArrayList<CallbackContext>(blockedWrites);
+                    blockedWrites.clear();
+                }
+            }
+            if (released != null) {
+                for (CallbackContext callbackContext : released) {
+                    callbackContext.success();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stream the file to the channel in packets of getMaxTransmitPacketSize, without passing through the app.
+     * Writes queued while the file is sent follow it.
+     */
+    public void sendFile(CallbackContext callbackContext, File file) {
+        if (!isConnected()) {
+            callbackContext.error("L2CAP PSM " + psm + " not connected.");
+            return;
+        }
+        if (!file.canRead()) {
+            callbackContext.error("Could not read " + file);
+            return;
+        }
+
+        synchronized (writeLock) {
+            if (writerRunning) {
+                callbackContext.error("L2CAP PSM " + psm + " is busy writing");
+                return;
+            }
+            writerRunning = true;
+        }
+
+        L2CAPFileTransfer transfer = new L2CAPFileTransfer(callbackContext, file.getName(), file.length());
+        try {
+            L2CAPExecutor.executeWrite(() -> sendFileData(transfer, file));
+        } catch (RejectedExecutionException e) {
+            Timber.e("Could not start the writer of L2Cap PSM %d", psm);
+            synchronized (writeLock) {
+                writerRunning = false;
+            }
+            transfer.fail("L2CAP PSM " + psm + " writer stopped");
+        }
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void sendFileData(L2CAPFileTransfer transfer, File file) {
+        BluetoothSocket lSocket = this.socket;
+        boolean writing = false;
+        try (InputStream inputStream = new FileInputStream(file)) {
+            if (lSocket == null) {
+                throw new IOException("L2CAP PSM " + psm + " not connected.");
+            }
+            OutputStream outputStream = lSocket.getOutputStream();
+            byte[] chunk = new byte[lSocket.getMaxTransmitPacketSize()];
+            int count;
+            while ((count = inputStream.read(chunk)) > 0) {
+                writing = true;
+                outputStream.write(chunk, 0, count);
+                writing = false;
+                bytesSent += count;
+                frames++;
+                transfer.onBytes(count);
+            }
+            transfer.finish();
         } catch (IOException e) {
-            Timber.e("L2Cap write failed %s", e.getMessage());
-            disconnectL2Cap("L2Cap write pipe broken");
-            callbackContext.error("L2CAP write failed");
+            transfer.fail("L2CAP file send failed: " + e.getMessage());
+            if (writing && this.socket == lSocket) {
+                disconnectL2Cap("L2Cap write pipe broken");
+            }
         }
+
+        // continue with the writes queued meanwhile on this thread
+        writeL2CapData();
     }
 
+    public void receiveFile(CallbackContext callbackContext, File file, long length) {
+        if (!isConnected()) {
+            callbackContext.error("L2CAP PSM " + psm + " not connected.");
+            return;
+        }
+
+        OutputStream outputStream;
+        try {
+            outputStream = new BufferedOutputStream(new FileOutputStream(file), 65536);
+        } catch (IOException e) {
+            callbackContext.error("Could not write " + file);
+            return;
+        }
+
+        synchronized (updateLock) {
+            if (receiveTransfer == null) {
+                receiveTransfer = new L2CAPFileTransfer(callbackContext, file.getName(), length);
+                receiveFile = outputStream;
+                return;
+            }
+        }
+        try {
+            outputStream.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        callbackContext.error("L2CAP PSM " + psm + " is busy receiving a file");
+    }
+
+    private void receiveFileData(L2CAPFileTransfer transfer, byte[] data, int offset, int length) {
+        long traceStart = BLETrace.begin("BLE l2capReadFile");
+        try {
+            writeFileData(transfer, data, offset, length);
+        } finally {
+            BLETrace.end("BLE l2capReadFile", device.getAddress(), traceStart, length);
+        }
+    }
+
+    private void writeFileData(L2CAPFileTransfer transfer, byte[] data, int offset, int length) {
+        OutputStream outputStream;
+        synchronized (updateLock) {
+            outputStream = receiveFile;
+        }
+        try {
+            outputStream.write(data, offset, length);
+        } catch (IOException e) {
+            endReceiveFile("Could not write file: " + e.getMessage());
+            return;
+        }
+        if (transfer.onBytes(length)) {
+            endReceiveFile(null);
+        }
+    }
+
+    // finish the file receive, or fail it with the message
+    private void endReceiveFile(String message) {
+        L2CAPFileTransfer transfer;
+        OutputStream outputStream;
+        synchronized (updateLock) {
+            transfer = receiveTransfer;
+            outputStream = receiveFile;
+            receiveTransfer = null;
+            receiveFile = null;
+        }
+        if (transfer == null) {
+            return;
+        }
+        try {
+            outputStream.close();
+        } catch (IOException e) {
+            if (message == null) {
+                message = "Could not write file: " + e.getMessage();
+            }
+        }
+        if (message == null) {
+            transfer.finish();
+        } else {
+            transfer.fail(message);
+        }
+    }
+
+    // drop the queued data and fail the writes still waiting for an answer
+    private void failWrites(String message) {
+        List<CallbackContext> failed;
+        synchronized (writeLock) {
+            writeQueue.clear();
+            queuedBytes = 0;
+            failed = new ArrayList<CallbackContext>(blockedWrites);
+            blockedWrites.clear();
+        }
+        for (CallbackContext callbackContext : failed) {
+            callbackContext.error(message);
+        }
+    }
+
+    /**
+     * Reads go straight into one batch buffer that lives as long as the channel. Reads that are already
+     * waiting in the socket are appended until the batch is full or receiveBatchDelay has passed, then the
+     * batch is delivered as one result. A read never waits for more data to fill a batch. A framed channel
+     * delivers complete messages instead.
+     */
     @RequiresApi(api = Build.VERSION_CODES.M)
     private void readL2CapData() {
         try {
             final BluetoothSocket lSocket = this.socket;
+            final L2CAPOptions options = this.options;
+            final L2CAPFramer framer = L2CAPFramer.create(options.framing);
             InputStream inputStream = lSocket.getInputStream();
-            byte[] buffer = new byte[lSocket.getMaxReceivePacketSize()];
+            int packetSize = lSocket.getMaxReceivePacketSize();
+            byte[] batch = new byte[Math.max(packetSize, options.receiveBatchSize)];
+            int pending = 0;
+            int pendingReads = 0;
+            long batchStartedAt = 0;
             while (lSocket.isConnected()) {
-                int readCount = inputStream.read(buffer);
-                CallbackContext receiver;
+                L2CAPFileTransfer transfer;
+                synchronized (updateLock) {
+                    transfer = receiveTransfer;
+                }
+                if (transfer != null && pending == 0) {
+                    // don't read past the end of the file, the bytes after it are for the app
+                    int limit = packetSize;
+                    if (transfer.getTotal() > 0) {
+                        limit = (int) Math.min(packetSize, transfer.getTotal() - transfer.getBytes());
+                    }
+                    int readCount = inputStream.read(batch, 0, limit);
+                    if (readCount < 0) {
+                        break;
+                    }
+                    reads++;
+                    bytesReceived += readCount;
+                    receiveFileData(transfer, batch, 0, readCount);
+                    continue;
+                }
+
+                int readCount = inputStream.read(batch, pending, Math.min(packetSize, batch.length - pending));
+                if (readCount < 0) {
+                    break;
+                }
+                if (pendingReads == 0) {
+                    batchStartedAt = SystemClock.elapsedRealtime();
+                }
+                reads++;
+                bytesReceived += readCount;
+
                 synchronized (updateLock) {
-                    receiver = l2capReceiver;
+                    transfer = receiveTransfer;
+                }
+                if (transfer != null) {
+                    // the file receive started while the read was waiting, the bytes read are the start of the file
+                    if (pending > 0) {
+                        deliver(framer, batch, pending);
+                    }
+                    int fileCount = readCount;
+                    if (transfer.getTotal() > 0) {
+                        fileCount = (int) Math.min(readCount, transfer.getTotal() - transfer.getBytes());
+                    }
+                    receiveFileData(transfer, batch, pending, fileCount);
+                    int rest = readCount - fileCount;
+                    if (rest > 0) {
+                        // the file ended within the read, the rest is for the app
+                        System.arraycopy(batch, pending + fileCount, batch, 0, rest);
+                        deliver(framer, batch, rest);
+                    }
+                    pending = 0;
+                    pendingReads = 0;
+                    continue;
                 }
-                if (readCount >= 0 && receiver != null) {
-                    PluginResult result = new PluginResult(PluginResult.Status.OK, Arrays.copyOf(buffer, readCount));
-                    result.setKeepCallback(true);
-                    receiver.sendPluginResult(result);
+
+                pending += readCount;
+                pendingReads++;
+
+                boolean full = batch.length - pending < packetSize;
+                if (full || inputStream.available() == 0
+                        || SystemClock.elapsedRealtime() - batchStartedAt >= options.receiveBatchDelayMillis) {
+                    deliver(framer, batch, pending);
+                    pending = 0;
+                    pendingReads = 0;
                 }
             }
+            if (pending > 0) {
+                deliver(framer, batch, pending);
+            }
             disconnectL2Cap("L2Cap channel disconnected");
 
+        } catch (L2CAPFramer.FramingException e) {
+            Timber.e("L2Cap framing failed %s", e.getMessage());
+            disconnectL2Cap("L2Cap framing error: " + e.getMessage());
+
         } catch (Exception e) {
             Timber.e("reading L2Cap data failed %s", e.getMessage());
             disconnectL2Cap("L2Cap read pipe broken");
         }
     }
+
+    private void deliver(L2CAPFramer framer, byte[] batch, int length) throws L2CAPFramer.FramingException {
+        long traceStart = BLETrace.begin("BLE l2capRead");
+        try {
+            if (framer != null) {
+                framer.feed(batch, length, this::deliver);
+            } else {
+                deliver(length == batch.length ? batch : Arrays.copyOf(batch, length));
+            }
+        } finally {
+            BLETrace.end("BLE l2capRead", device.getAddress(), traceStart, length);
+        }
+    }
+
+    // the result encodes the bytes right away, so the caller may reuse the array afterwards
+    private void deliver(byte[] data) {
+        deliveries++;
+        CallbackContext receiver;
+        synchronized (updateLock) {
+            receiver = l2capReceiver;
+        }
+        if (receiver != null) {
+            PluginResult result = new PluginResult(PluginResult.Status.OK, data);
+            result.setKeepCallback(true);
+            receiver.sendPluginResult(result);
+        }
+    }
+
+    private void resetStats() {
+        connectedAt = SystemClock.elapsedRealtime();
+        bytesReceived = 0;
+        reads = 0;
+        deliveries = 0;
+        bytesSent = 0;
+        frames = 0;
+    }
+
+    // throughput and batching of the current or last connection, used to tune the receive batch options
+    public JSONObject getStats() {
+        JSONObject json = new JSONObject();
+        long elapsed = connectedAt > 0 ? SystemClock.elapsedRealtime() - connectedAt : 0;
+        try {
+            json.put("psm", psm);
+            json.put("connected", isConnected());
+            json.put("bytesReceived", bytesReceived);
+            json.put("reads", reads);
+            json.put("deliveries", deliveries);
+            json.put("readsPerDelivery", deliveries > 0 ? (double) reads / deliveries : 0);
+            // bytes per second
+            json.put("receiveThroughput", elapsed > 0 ? bytesReceived * 1000 / elapsed : 0);
+            json.put("bytesSent", bytesSent);
+            json.put("frames", frames);
+            json.put("sendThroughput", elapsed > 0 ? bytesSent * 1000 / elapsed : 0);
+            synchronized (writeLock) {
+                json.put("queuedBytes", queuedBytes);
+            }
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        return json;
+    }
 }
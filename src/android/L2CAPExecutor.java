@@ -0,0 +1,83 @@
+package com.megster.cordova.ble.central;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+/**
+ * The threads of all L2CAP channels. A reader thread is started when a channel connects and ends a while after
+ * the channel closed, so idle channels cost nothing. The reader pool is bounded, a channel that would need more
+ * threads than that fails to open instead of waiting for another channel to close.
+ *
+ * Writers drain a channel's write queue and return, they have a pool of their own so open channels never
+ * starve writes. A writer that finds all writer threads busy waits for one instead of failing.
+ */
+class L2CAPExecutor {
+
+    static final int MAX_THREADS = 8;
+    static final int MAX_WRITER_THREADS = 4;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static ThreadPoolExecutor executor;
+    private static ThreadPoolExecutor writeExecutor;
+
+    private static final ThreadFactory threadFactory = new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "L2CAP-" + count.incrementAndGet());
+        }
+    };
+
+    private static synchronized ExecutorService get() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(0, MAX_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), threadFactory);
+        }
+        return executor;
+    }
+
+    private static synchronized ExecutorService getWriter() {
+        if (writeExecutor == null) {
+            writeExecutor = new ThreadPoolExecutor(MAX_WRITER_THREADS, MAX_WRITER_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), threadFactory);
+            writeExecutor.allowCoreThreadTimeOut(true);
+        }
+        return writeExecutor;
+    }
+
+    /**
+     * Run the task on its own thread, throws RejectedExecutionException when all threads are in use.
+     */
+    static void execute(Runnable task) throws RejectedExecutionException {
+        get().execute(task);
+    }
+
+    /**
+     * Run the writer on a writer thread, or once one is free. Only throws RejectedExecutionException after shutdown.
+     */
+    static void executeWrite(Runnable task) throws RejectedExecutionException {
+        getWriter().execute(task);
+    }
+
+    // the plugin is destroyed or the page reloaded, the channels were closed already
+    static synchronized void shutdown() {
+        if (executor != null) {
+            Timber.i("Shutting down L2CAP executor, %d threads active", executor.getActiveCount());
+            executor.shutdownNow();
+            executor = null;
+        }
+        if (writeExecutor != null) {
+            writeExecutor.shutdownNow();
+            writeExecutor = null;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.megster.cordova.ble.central;
+
+import android.os.SystemClock;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import timber.log.Timber;
+
+/**
+ * Progress of a file streamed to or from an L2CAP channel. The app is sent { bytes, total, elapsed } a few
+ * times per second and { bytes, total, elapsed, throughput, done: true } once the transfer finished.
+ */
+class L2CAPFileTransfer {
+
+    static final long PROGRESS_INTERVAL_MILLIS = 250;
+
+    private final CallbackContext callbackContext;
+    private final String name;
+    private final long total; // 0 when unknown
+    private final long startedAt = SystemClock.elapsedRealtime();
+    private long lastProgressAt = startedAt;
+    private long bytes;
+    private boolean finished = false;
+
+    L2CAPFileTransfer(CallbackContext callbackContext, String name, long total) {
+        this.callbackContext = callbackContext;
+        this.name = name;
+        this.total = total;
+    }
+
+    long getTotal() {
+        return total;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    // returns true once all expected bytes were transferred
+    synchronized boolean onBytes(int count) {
+        bytes += count;
+        long now = SystemClock.elapsedRealtime();
+        if (now - lastProgressAt >= PROGRESS_INTERVAL_MILLIS) {
+            lastProgressAt = now;
+            PluginResult result = new PluginResult(PluginResult.Status.OK, asJSONObject(now));
+            result.setKeepCallback(true);
+            callbackContext.sendPluginResult(result);
+        }
+        return total > 0 && bytes >= total;
+    }
+
+    synchronized void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        long now = SystemClock.elapsedRealtime();
+        JSONObject json = asJSONObject(now);
+        long elapsed = now - startedAt;
+        try {
+            // bytes per second
+            json.put("throughput", elapsed > 0 ? bytes * 1000 / elapsed : 0);
+            json.put("done", true);
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        Timber.i("L2CAP transfer of %s done, %d bytes in %d ms", name, bytes, elapsed);
+        callbackContext.success(json);
+    }
+
+    synchronized void fail(String message) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        Timber.e("L2CAP transfer of %s failed after %d bytes: %s", name, bytes, message);
+        callbackContext.error(message);
+    }
+
+    private JSONObject asJSONObject(long now) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("bytes", bytes);
+            json.put("total", total);
+            json.put("elapsed", now - startedAt);
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        return json;
+    }
+}
@@ -0,0 +1,208 @@
+package com.megster.cordova.ble.central;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits the bytes of an L2CAP channel into the app's messages, so the app receives one callback per complete
+ * message instead of reads at arbitrary boundaries. Runs on the channel's reader thread, a framer keeps the
+ * bytes of an incomplete message and must not be shared between connections.
+ *
+ * { type: 'lengthPrefix', lengthBytes: 2, littleEndian: false, lengthIncludesHeader: false, maxLength: 1048576 }
+ * { type: 'delimiter', delimiter: [13, 10] or '\r\n', includeDelimiter: false, maxLength: 1048576 }
+ */
+abstract class L2CAPFramer {
+
+    static final int DEFAULT_MAX_LENGTH = 1024 * 1024;
+
+    interface Listener {
+        void onMessage(byte[] message);
+    }
+
+    // the peer sent something that can't be framed, the channel should be closed
+    static class FramingException extends Exception {
+        FramingException(String message) {
+            super(message);
+        }
+    }
+
+    protected final int maxLength;
+
+    // bytes received but not yet part of a complete message are buffer[start..end)
+    protected byte[] buffer = new byte[1024];
+    protected int start = 0;
+    protected int end = 0;
+
+    L2CAPFramer(JSONObject json) throws JSONException {
+        maxLength = json.optInt("maxLength", DEFAULT_MAX_LENGTH);
+        if (maxLength <= 0) {
+            throw new JSONException("maxLength must be positive");
+        }
+    }
+
+    /**
+     * Returns a new framer for the framing options or null when the channel isn't framed.
+     */
+    static L2CAPFramer create(JSONObject json) throws JSONException {
+        if (json == null) {
+            return null;
+        }
+        String type = json.getString("type");
+        if ("lengthPrefix".equals(type)) {
+            return new LengthPrefix(json);
+        } else if ("delimiter".equals(type)) {
+            return new Delimiter(json);
+        }
+        throw new JSONException("Unknown L2CAP framing " + type);
+    }
+
+    /**
+     * Append the received bytes and call the listener for every message they complete.
+     */
+    void feed(byte[] data, int length, Listener listener) throws FramingException {
+        append(data, length);
+        byte[] message;
+        while ((message = next()) != null) {
+            listener.onMessage(message);
+        }
+        if (start == end) {
+            onCompact(start);
+            start = 0;
+            end = 0;
+        }
+    }
+
+    // the next complete message or null when more bytes are needed
+    protected abstract byte[] next() throws FramingException;
+
+    private void append(byte[] data, int length) {
+        if (end + length > buffer.length) {
+            int pending = end - start;
+            if (pending + length <= buffer.length) {
+                // move the incomplete message to the front
+                System.arraycopy(buffer, start, buffer, 0, pending);
+            } else {
+                byte[] grown = new byte[Math.max(buffer.length * 2, pending + length)];
+                System.arraycopy(buffer, start, grown, 0, pending);
+                buffer = grown;
+            }
+            onCompact(start);
+            start = 0;
+            end = pending;
+        }
+        System.arraycopy(data, 0, buffer, end, length);
+        end += length;
+    }
+
+    // the pending bytes moved shift positions to the front
+    protected void onCompact(int shift) {
+    }
+
+    /**
+     * A header of 1, 2 or 4 bytes holds the length of the message that follows.
+     */
+    static class LengthPrefix extends L2CAPFramer {
+        private final int lengthBytes;
+        private final boolean littleEndian;
+        private final boolean lengthIncludesHeader;
+
+        LengthPrefix(JSONObject json) throws JSONException {
+            super(json);
+            lengthBytes = json.optInt("lengthBytes", 2);
+            if (lengthBytes != 1 && lengthBytes != 2 && lengthBytes != 4) {
+                throw new JSONException("lengthBytes must be 1, 2 or 4");
+            }
+            littleEndian = json.optBoolean("littleEndian", false);
+            lengthIncludesHeader = json.optBoolean("lengthIncludesHeader", false);
+        }
+
+        @Override
+        protected byte[] next() throws FramingException {
+            if (end - start < lengthBytes) {
+                return null;
+            }
+            long length = 0;
+            for (int i = 0; i < lengthBytes; i++) {
+                int value = buffer[start + (littleEndian ? lengthBytes - 1 - i : i)] & 0xFF;
+                length = (length << 8) | value;
+            }
+            if (lengthIncludesHeader) {
+                length -= lengthBytes;
+            }
+            if (length < 0 || length > maxLength) {
+                throw new FramingException("Message length " + length + " exceeds " + maxLength);
+            }
+            if (end - start - lengthBytes < length) {
+                return null;
+            }
+            int from = start + lengthBytes;
+            start = from + (int) length;
+            return Arrays.copyOfRange(buffer, from, start);
+        }
+    }
+
+    /**
+     * Messages end with a delimiter, e.g. a line feed.
+     */
+    static class Delimiter extends L2CAPFramer {
+        private final byte[] delimiter;
+        private final boolean includeDelimiter;
+        // where the search for the delimiter continues, bytes before it were searched already
+        private int scanned = 0;
+
+        Delimiter(JSONObject json) throws JSONException {
+            super(json);
+            JSONArray bytes = json.optJSONArray("delimiter");
+            if (bytes != null) {
+                delimiter = new byte[bytes.length()];
+                for (int i = 0; i < bytes.length(); i++) {
+                    delimiter[i] = (byte) bytes.getInt(i);
+                }
+            } else {
+                delimiter = json.getString("delimiter").getBytes(StandardCharsets.UTF_8);
+            }
+            if (delimiter.length == 0) {
+                throw new JSONException("delimiter must not be empty");
+            }
+            includeDelimiter = json.optBoolean("includeDelimiter", false);
+        }
+
+        @Override
+        protected byte[] next() throws FramingException {
+            int from = Math.max(start, scanned);
+            for (int i = from; i <= end - delimiter.length; i++) {
+                if (matches(i)) {
+                    int messageEnd = includeDelimiter ? i + delimiter.length : i;
+                    byte[] message = Arrays.copyOfRange(buffer, start, messageEnd);
+                    start = i + delimiter.length;
+                    scanned = start;
+                    return message;
+                }
+            }
+            // a delimiter may start in the last bytes, search them again once more bytes arrived
+            scanned = Math.max(start, end - delimiter.length + 1);
+            if (end - start > maxLength) {
+                throw new FramingException("No delimiter within " + maxLength + " bytes");
+            }
+            return null;
+        }
+
+        private boolean matches(int index) {
+            for (int i = 0; i < delimiter.length; i++) {
+                if (buffer[index + i] != delimiter[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        protected void onCompact(int shift) {
+            scanned = Math.max(0, scanned - shift);
+        }
+    }
+}
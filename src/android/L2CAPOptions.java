@@ -0,0 +1,37 @@
+package com.megster.cordova.ble.central;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Options of openL2Cap, e.g. { psm: 0x80, secureChannel: true, receiveBatchSize: 16384, writeHighWatermark: 65536 }
+ */
+class L2CAPOptions {
+
+    static final long DEFAULT_RECEIVE_BATCH_DELAY_MILLIS = 20;
+    static final int DEFAULT_WRITE_HIGH_WATERMARK = 65536;
+    static final int DEFAULT_WRITE_LOW_WATERMARK = 16384;
+
+    final boolean secureChannel;
+    final int receiveBatchSize; // 0 delivers every read on its own
+    final long receiveBatchDelayMillis; // longest time reads are held back to fill a batch
+    final int writeHighWatermark; // queued bytes above which writes are answered late
+    final int writeLowWatermark; // queued bytes at which late writes are answered
+    final boolean coalesceWrites; // send small writes together, changes the SDU boundaries the peer sees
+    final JSONObject framing; // null delivers the bytes as they arrive, see L2CAPFramer
+
+    L2CAPOptions(JSONObject json) throws JSONException {
+        if (json == null) {
+            json = new JSONObject();
+        }
+        secureChannel = json.optBoolean("secureChannel", false);
+        receiveBatchSize = Math.max(0, json.optInt("receiveBatchSize", 0));
+        receiveBatchDelayMillis = Math.max(0, json.optLong("receiveBatchDelay", DEFAULT_RECEIVE_BATCH_DELAY_MILLIS));
+        writeHighWatermark = Math.max(0, json.optInt("writeHighWatermark", DEFAULT_WRITE_HIGH_WATERMARK));
+        writeLowWatermark = Math.min(writeHighWatermark, Math.max(0, json.optInt("writeLowWatermark", DEFAULT_WRITE_LOW_WATERMARK)));
+        coalesceWrites = json.optBoolean("coalesceWrites", false);
+        framing = json.optJSONObject("framing");
+        // fail on open instead of in the reader thread
+        L2CAPFramer.create(framing);
+    }
+}
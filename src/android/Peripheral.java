@@ -18,12 +18,11 @@ import android.app.Activity;
 
 import android.bluetooth.*;
 import android.os.Build;
-import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Base64;
 
-import com.google.firebase.analytics.FirebaseAnalytics;
 
 import timber.log.Timber;
 
@@ -34,6 +33,7 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -51,18 +51,21 @@ public class Peripheral extends BluetoothGattCallback {
     private static final String TAG = "Peripheral";
 
     private static final int FAKE_PERIPHERAL_RSSI = 0x7FFFFFFF;
+    // errorCode of the disconnect message when connecting timed out
+    static final String CONNECT_TIMEOUT_ERROR = "connectTimeout";
+    // time setPreferredPhy waits for onPhyUpdate before it reads the PHY instead
+    private static final long PHY_UPDATE_TIMEOUT_MILLIS = 2000;
 
     private BluetoothDevice device;
     private byte[] advertisingData;
     public int advertisingRSSI;
     private boolean autoconnect = false;
-    private boolean connected = false;
-    private boolean connecting = false;
+    private final ConnectionState state;
     private ConcurrentLinkedQueue<BLECommand> commandQueue = new ConcurrentLinkedQueue<BLECommand>();
     private final Map<Integer, L2CAPContext> l2capContexts = new HashMap<Integer, L2CAPContext>();
     private final AtomicBoolean bleProcessing = new AtomicBoolean();
 
-    BluetoothGatt gatt;
+    volatile BluetoothGatt gatt;
 
     private CallbackContext connectCallback;
     private CallbackContext refreshCallback;
@@ -73,94 +76,469 @@ public class Peripheral extends BluetoothGattCallback {
     private int disconnectCount = 0;
 
     private Map<String, SequentialCallbackContext> notificationCallbacks = new HashMap<String, SequentialCallbackContext>();
+    // notifications the app subscribed to, persistent ones are replayed after every reconnect,
+    // all of them when the connection is restored
+    private final Map<String, Subscription> subscriptions = new LinkedHashMap<String, Subscription>();
+
+    private final AnalyticsQueue analytics;
+
+    private final ConnectionManager connectionManager;
+    private int connectPriority = ConnectionManager.PRIORITY_NORMAL;
+    private volatile long lastActivity;
+
+    // the peripheral's event loop, GATT callbacks (API 26+), commands and timers run on it
+    private final Handler handler;
+    private final Runnable processCommandsRunnable = this::processCommands;
+    private final Runnable commandTimeoutRunnable = this::onCommandTimeout;
+    private final Runnable phyUpdateTimeoutRunnable = this::onPhyUpdateTimeout;
+    private DeviceProfile deviceProfile = DeviceProfile.DEFAULT;
+    private final PeripheralMetrics metrics = new PeripheralMetrics();
+    // the command waiting for its GATT callback, null when none. Only the callback that answers it completes it,
+    // a late callback of a command that timed out must not complete the command dispatched after it
+    private BLECommand inFlight;
+    // key of the subscription whose descriptor write is in flight
+    private String pendingSubscriptionKey;
+    // index of the command in flight into PeripheralMetrics.COMMANDS, -1 when none
+    private int dispatchedCommand = -1;
+    private long dispatchedAt;
+    // System.nanoTime when the traced request started, -1 when none is pending
+    private long connectTraceStart = -1;
+    private long discoveryTraceStart = -1;
+    private long mtuTraceStart = -1;
+    private static final String[] COMMAND_SECTIONS = new String[PeripheralMetrics.COMMANDS.length];
+    static {
+        for (int i = 0; i < COMMAND_SECTIONS.length; i++) {
+            COMMAND_SECTIONS[i] = "BLE " + PeripheralMetrics.COMMANDS[i];
+        }
+    }
+    private final Runnable reconnectRunnable = () -> {
+        if (connectCallback != null && currentActivity != null) {
+            connect(connectCallback, currentActivity, autoconnect);
+        }
+    };
+    private final Runnable connectTimeoutRunnable = this::onConnectTimeout;
+    private long connectTimeoutMillis = ConnectionManager.DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private ConnectRecipe connectRecipe;
+    private int connectPhyMask = 0;
+    private CallbackContext setPhyCallback;
+    private CallbackContext readPhyCallback;
+    // setPreferredPhy got no onPhyUpdate and waits for onPhyRead instead
+    private boolean phyReadFallback = false;
+    // Bluetooth turned off while connected, connect again once it is back on
+    private boolean restorePending = false;
+    private boolean restoring = false;
+    // the link connected and waits for its first service discovery, persistent subscriptions are replayed then
+    private boolean newConnection = false;
+
+    private static class Subscription {
+        final UUID serviceUUID;
+        final UUID characteristicUUID;
+        final CallbackContext callbackContext;
+        final boolean persistent;
+
+        Subscription(UUID serviceUUID, UUID characteristicUUID, CallbackContext callbackContext, boolean persistent) {
+            this.serviceUUID = serviceUUID;
+            this.characteristicUUID = characteristicUUID;
+            this.callbackContext = callbackContext;
+            this.persistent = persistent;
+        }
+    }
 
-    private FirebaseAnalytics mFirebaseAnalytics;
-
-    public Peripheral(BluetoothDevice device, FirebaseAnalytics firebaseAnalytics) {
+    public Peripheral(BluetoothDevice device, AnalyticsQueue analytics, ConnectionManager connectionManager) {
 
         Timber.i("Creating un-scanned peripheral entry for address: %s", device.getAddress());
 
-        this.mFirebaseAnalytics = firebaseAnalytics;
+        this.analytics = analytics;
+        this.connectionManager = connectionManager;
         this.device = device;
         this.advertisingRSSI = FAKE_PERIPHERAL_RSSI;
         this.advertisingData = null;
+        this.handler = new Handler(PeripheralLoops.looperFor(device.getAddress()));
+        this.state = new ConnectionState(device.getAddress());
 
     }
 
-    public Peripheral(BluetoothDevice device, int advertisingRSSI, byte[] scanRecord, FirebaseAnalytics firebaseAnalytics) {
+    public Peripheral(BluetoothDevice device, int advertisingRSSI, byte[] scanRecord, AnalyticsQueue analytics, ConnectionManager connectionManager) {
 
-        this.mFirebaseAnalytics = firebaseAnalytics;
+        this.analytics = analytics;
+        this.connectionManager = connectionManager;
         this.device = device;
         this.advertisingRSSI = advertisingRSSI;
         this.advertisingData = scanRecord;
+        this.handler = new Handler(PeripheralLoops.looperFor(device.getAddress()));
+        this.state = new ConnectionState(device.getAddress());
 
     }
 
-    private void gattConnect() {
+    // run the task on the peripheral's loop, right away when already on it
+    private void runOnLoop(Runnable task) {
+        if (Looper.myLooper() == handler.getLooper()) {
+            task.run();
+        } else {
+            handler.post(task);
+        }
+    }
 
-        closeGatt();
-        connected = false;
-        connecting = true;
-        queueCleanup();
-        callbackCleanup();
+    // called by the ConnectionManager once this peripheral may connect
+    void gattConnect() {
+        runOnLoop(this::openGatt);
+    }
 
-        BluetoothDevice device = getDevice();
-        if (Build.VERSION.SDK_INT < 23) {
-            gatt = device.connectGatt(currentActivity, autoconnect, this);
-        } else {
-            gatt = device.connectGatt(currentActivity, autoconnect, this, BluetoothDevice.TRANSPORT_LE);
+    private void openGatt() {
+        long traceStart = BLETrace.begin("BLE gattConnect");
+        try {
+            // every way out of a connection cleaned up already, only an autoconnect gatt may still be open
+            closeGatt();
+            state.moveTo(ConnectionState.State.CONNECTING);
+            connectTraceStart = BLETrace.beginAsync("BLE connect", traceCookie());
+
+            BluetoothDevice device = getDevice();
+            deviceProfile = DeviceProfile.get(device);
+            int phyMask = connectPhyMask != 0 ? connectPhyMask : deviceProfile.phyMask;
+            if (Build.VERSION.SDK_INT < 23) {
+                gatt = device.connectGatt(currentActivity, autoconnect, this);
+            } else if (Build.VERSION.SDK_INT < 26) {
+                gatt = device.connectGatt(currentActivity, autoconnect, this, BluetoothDevice.TRANSPORT_LE);
+            } else {
+                // the callbacks run on the peripheral's loop instead of a binder thread
+                gatt = device.connectGatt(currentActivity, autoconnect, this, BluetoothDevice.TRANSPORT_LE,
+                        phyMask != 0 ? phyMask : BluetoothDevice.PHY_LE_1M_MASK, handler);
+            }
+
+            if (connectRecipe != null) {
+                connectRecipe.stepDone("queue");
+            }
+
+            // auto connect waits for the device to show up, it is expected to take forever
+            if (!autoconnect && connectTimeoutMillis > 0) {
+                handler.removeCallbacks(connectTimeoutRunnable);
+                handler.postDelayed(connectTimeoutRunnable, connectTimeoutMillis);
+            }
+        } finally {
+            BLETrace.end("BLE gattConnect", device.getAddress(), traceStart, 0);
         }
+    }
 
+    public void connect(CallbackContext callbackContext, Activity activity, boolean auto, ConnectOptions options, ConnectRecipe recipe) {
+        runOnLoop(() -> connectOnLoop(callbackContext, activity, auto, options, recipe));
+    }
+
+    private void connectOnLoop(CallbackContext callbackContext, Activity activity, boolean auto, ConnectOptions options, ConnectRecipe recipe) {
+        connectPriority = options.priority;
+        connectTimeoutMillis = options.timeoutMillis;
+        connectPhyMask = options.phyMask;
+        connectRecipe = recipe;
+        connect(callbackContext, activity, auto);
     }
 
     public void connect(CallbackContext callbackContext, Activity activity, boolean auto) {
+        runOnLoop(() -> connectOnLoop(callbackContext, activity, auto));
+    }
+
+    private void connectOnLoop(CallbackContext callbackContext, Activity activity, boolean auto) {
         currentActivity = activity;
-        autoconnect = auto;
+        if (connectCallback != null && connectCallback != callbackContext
+                && (state.is(ConnectionState.State.CONNECTING) || state.is(ConnectionState.State.DISCOVERING))) {
+            // the earlier caller is still waiting, only the new callback is answered once services are discovered
+            connectCallback.error(this.asJSONObject("Connect superseded by a new request"));
+        }
         connectCallback = callbackContext;
+
+        if (state.is(ConnectionState.State.READY)) {
+            // already connected, answer the new callback instead of connecting again
+            // the recipe ran on this link already, its steps aren't repeated
+            Timber.i("%s is connected already", device.getAddress());
+            JSONObject recipeResult = connectRecipe != null ? connectRecipe.getResult() : null;
+            PluginResult result = new PluginResult(PluginResult.Status.OK,
+                    recipeResult != null ? recipeResult : this.asJSONObject(gatt));
+            result.setKeepCallback(true);
+            callbackContext.sendPluginResult(result);
+            return;
+        }
+
+        PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+        result.setKeepCallback(true);
+        callbackContext.sendPluginResult(result);
+
+        if (state.is(ConnectionState.State.DISCOVERING) || (state.is(ConnectionState.State.CONNECTING) && gatt != null)) {
+            // connectGatt is in flight, the new callback is answered once services are discovered
+            Timber.i("%s is connecting already", device.getAddress());
+            return;
+        }
+
+        autoconnect = auto;
         if (refreshCallback != null) {
             refreshCallback.error(this.asJSONObject("refreshDeviceCache aborted due to new connect call"));
             refreshCallback = null;
         }
 
-        gattConnect();
+        // every attempt is timed from its start, also reconnects and restore
+        if (connectRecipe != null) {
+            connectRecipe.start(this);
+        }
 
-        PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
-        result.setKeepCallback(true);
-        callbackContext.sendPluginResult(result);
+        // connection establishment is serialized across peripherals
+        handler.removeCallbacks(reconnectRunnable);
+        state.moveTo(ConnectionState.State.CONNECTING);
+        connectionManager.enqueue(this, connectPriority);
     }
 
     // the app requested the central disconnect from the peripheral
     // disconnect the gatt, do not call connectCallback.error
     public void disconnect() {
-        connected = false;
-        connecting = false;
+        runOnLoop(this::disconnectOnLoop);
+    }
+
+    private void disconnectOnLoop() {
         autoconnect = false;
+        restorePending = false;
+        restoring = false;
+        subscriptions.clear();
+        if (state.is(ConnectionState.State.IDLE)) {
+            // the gatt, the connection slot and the callbacks were released when the peripheral went idle
+            return;
+        }
 
+        state.moveTo(ConnectionState.State.DISCONNECTING);
+        cancelReconnect();
         closeGatt();
+        connectionManager.release(this);
         queueCleanup();
         callbackCleanup();
+        state.moveTo(ConnectionState.State.IDLE);
+    }
+
+    // Bluetooth is turning off, drop the link but keep the callbacks so restore can connect again
+    void suspendForRestore() {
+        runOnLoop(this::suspendOnLoop);
+    }
+
+    private void suspendOnLoop() {
+        if (state.is(ConnectionState.State.IDLE)) {
+            return;
+        }
+        Timber.i("Suspending %s until Bluetooth is back on", device.getAddress());
+        state.moveTo(ConnectionState.State.DISCONNECTING);
+        restorePending = true;
+        cancelReconnect();
+
+        closeGatt();
+        connectionManager.release(this);
+
+        if (connectCallback != null) {
+            PluginResult result = new PluginResult(PluginResult.Status.ERROR, this.asJSONObject("Bluetooth Disabled"));
+            result.setKeepCallback(true);
+            connectCallback.sendPluginResult(result);
+        }
+
+        queueCleanup();
+        callbackCleanup();
+        state.moveTo(ConnectionState.State.IDLE);
+    }
+
+    // Bluetooth is back on, connect if the peripheral was suspended
+    void restore() {
+        runOnLoop(() -> {
+            if (!restorePending) {
+                return;
+            }
+            restorePending = false;
+            if (connectCallback == null || currentActivity == null) {
+                return;
+            }
+            Timber.i("Restoring connection to %s", device.getAddress());
+            restoring = true;
+            connect(connectCallback, currentActivity, autoconnect);
+        });
+    }
+
+    // the connect recipe finished, its MTU request no longer collides with the CCCD writes
+    void onRecipeReady() {
+        runOnLoop(this::resubscribeAfterConnect);
+    }
+
+    // a refresh or rediscovery on the same link keeps its subscriptions, writing them again duplicates CCCD writes
+    private void resubscribeAfterConnect() {
+        if (restoring) {
+            restoreSubscriptions();
+        } else if (newConnection) {
+            resubscribe(true);
+        }
+        newConnection = false;
+    }
+
+    // subscribe again to the notifications the app had before the connection was lost
+    private void restoreSubscriptions() {
+        restoring = false;
+        int restored = resubscribe(false);
+
+        JSONObject details = new JSONObject();
+        try {
+            details.put("subscriptions", restored);
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        connectionManager.sendEvent("restored", this, details);
+    }
+
+    // queue the subscriptions in one batch, the results go to the app's original callbacks
+    private int resubscribe(boolean persistentOnly) {
+        List<Subscription> replay = new ArrayList<Subscription>();
+        for (Subscription subscription : subscriptions.values()) {
+            if (subscription.persistent || !persistentOnly) {
+                replay.add(subscription);
+            }
+        }
+        for (Subscription subscription : replay) {
+            BLECommand command = new BLECommand(subscription.callbackContext, subscription.serviceUUID, subscription.characteristicUUID,
+                    subscription.persistent ? BLECommand.REGISTER_PERSISTENT_NOTIFY : BLECommand.REGISTER_NOTIFY);
+            queueCommand(command);
+        }
+        if (!replay.isEmpty()) {
+            Timber.i("Subscribing again to %d notifications of %s", replay.size(), device.getAddress());
+        }
+        return replay.size();
+    }
+
+    // the app has to subscribe again to notifications that are not persistent
+    private void forgetSubscriptions() {
+        for (Iterator<Subscription> iterator = subscriptions.values().iterator(); iterator.hasNext(); ) {
+            if (!iterator.next().persistent) {
+                iterator.remove();
+            }
+        }
+    }
+
+    // the connection manager needs the slot, drop the link and notify the app
+    void evict() {
+        runOnLoop(() -> {
+            if (state.is(ConnectionState.State.IDLE)) {
+                // disconnected already, just hand back the slot
+                connectionManager.release(this);
+                return;
+            }
+            autoconnect = false;
+            peripheralDisconnected("Peripheral disconnected to free a connection slot");
+        });
     }
 
     // the peripheral disconnected
     // always call connectCallback.error to notify the app
     public void peripheralDisconnected(String message) {
-        Timber.i( "Peripheral disconnected " + message);
-        connected = false;
-        connecting = false;
+        runOnLoop(() -> peripheralDisconnected(this.asJSONObject(message)));
+    }
+
+    private void peripheralDisconnected(JSONObject message) {
+        if (state.is(ConnectionState.State.IDLE)) {
+            // the app was told already
+            return;
+        }
+        Timber.i( "Peripheral disconnected " + message.optString("errorMessage"));
+        state.moveTo(ConnectionState.State.DISCONNECTING);
+        cancelReconnect();
 
         // don't remove the gatt for autoconnect
         if (!autoconnect) {
             closeGatt();
+            connectionManager.release(this);
         }
 
         sendDisconnectMessage(message);
+        forgetSubscriptions();
 
         queueCleanup();
         callbackCleanup();
+        // an autoconnect gatt connects again by itself once the peripheral is back
+        if (autoconnect && connectRecipe != null) {
+            connectRecipe.start(this);
+        }
+        if (!autoconnect) {
+            // the restore attempt is over, a later connect by the app must not announce a restore
+            restoring = false;
+        }
+        state.moveTo(autoconnect ? ConnectionState.State.CONNECTING : ConnectionState.State.IDLE);
+    }
+
+    /**
+     * Ask the reconnect policy for another attempt after an unexpected disconnect.
+     * Returns false when the policy gives up and the app should be told about the disconnect.
+     */
+    private boolean scheduleReconnect(int status) {
+        if (connectCallback == null || currentActivity == null) {
+            return false;
+        }
+
+        ReconnectPolicy reconnectPolicy = connectionManager.getReconnectPolicy();
+        SupportedPeripherals family = SupportedPeripherals.findMatchingDevice(device);
+        ReconnectPolicy.Rule rule = reconnectPolicy.getRule(family != null ? family.getPeripheralType() : null,
+                DeviceProfile.get(device).reconnectRule, status);
+        int attempt = disconnectCount + 1;
+        long delay = reconnectPolicy.getDelay(rule, attempt);
+
+        JSONObject details = new JSONObject();
+        try {
+            details.put("status", status);
+            details.put("attempt", attempt);
+            details.put("maxAttempts", rule.maxAttempts);
+            if (delay >= 0) {
+                details.put("delay", delay);
+            }
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+
+        if (delay < 0) {
+            if (disconnectCount > 0) {
+                Timber.i("Giving up reconnecting %s after %d attempts", device.getAddress(), disconnectCount);
+                connectionManager.sendEvent("reconnectFailed", this, details);
+            }
+            return false;
+        }
+
+        Timber.i("Reconnect attempt %d for %s in %d ms after gatt status %d", attempt, device.getAddress(), delay, status);
+        metrics.onReconnect();
+        disconnectCount = attempt;
+        closeGatt();
+        queueCleanup();
+        callbackCleanup();
+        state.moveTo(ConnectionState.State.BACKOFF); // keeps the peripheral around while waiting
+        connectionManager.sendEvent("reconnecting", this, details);
+        handler.postDelayed(reconnectRunnable, delay);
+        return true;
+    }
+
+    // connectGatt didn't connect in time, give up instead of waiting for the stack's own timeout
+    private void onConnectTimeout() {
+        if (!state.is(ConnectionState.State.CONNECTING)) {
+            return;
+        }
+        Timber.w("Connecting to %s timed out after %d ms", device.getAddress(), connectTimeoutMillis);
+        closeGatt();
+        connectionManager.onConnectAttemptFinished(this);
+
+        if (!scheduleReconnect(ReconnectPolicy.STATUS_CONNECT_TIMEOUT)) {
+            JSONObject message = this.asJSONObject("Connection timed out");
+            try {
+                message.put("errorCode", CONNECT_TIMEOUT_ERROR);
+            } catch (JSONException e) { // this shouldn't happen
+                e.printStackTrace();
+            }
+            peripheralDisconnected(message);
+        }
+    }
+
+    private void cancelReconnect() {
+        handler.removeCallbacks(reconnectRunnable);
+        handler.removeCallbacks(connectTimeoutRunnable);
+        disconnectCount = 0;
     }
 
     private void closeGatt() {
         Timber.i( "Close Gatt");
+        // the callbacks of pending requests won't come anymore
+        endConnectTrace(-1);
+        endDiscoveryTrace(-1);
+        endMtuTrace(-1);
         BluetoothGatt localGatt;
         synchronized (this) {
             localGatt = this.gatt;
@@ -173,9 +551,8 @@ public class Peripheral extends BluetoothGattCallback {
     }
 
     // notify the phone that the peripheral disconnected
-    private void sendDisconnectMessage(String messageContent) {
+    private void sendDisconnectMessage(JSONObject message) {
         if (connectCallback != null) {
-            JSONObject message = this.asJSONObject(messageContent);
             if (autoconnect) {
                 PluginResult result = new PluginResult(PluginResult.Status.ERROR, message);
                 result.setKeepCallback(true);
@@ -191,6 +568,8 @@ public class Peripheral extends BluetoothGattCallback {
     public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
         super.onMtuChanged(gatt, mtu, status);
         Timber.i("mtu=%d, status=%d", mtu, status);
+        metrics.onStatus(status);
+        endMtuTrace(status);
 
         if (status == BluetoothGatt.GATT_SUCCESS) {
             requestMtuCallback.success(mtu);
@@ -213,6 +592,7 @@ public class Peripheral extends BluetoothGattCallback {
 
         if (gatt.requestMtu(mtuValue)) {
             requestMtuCallback = callback;
+            mtuTraceStart = BLETrace.beginAsync("BLE requestMtu", traceCookie());
         } else {
             callback.error("Could not initiate MTU request");
         }
@@ -237,6 +617,7 @@ public class Peripheral extends BluetoothGattCallback {
      */
     public void refreshDeviceCache(CallbackContext callback, final long timeoutMillis) {
         Timber.i("refreshDeviceCache");
+        ServiceCache.invalidate(device.getAddress());
 
         boolean success = false;
         if (gatt != null) {
@@ -246,14 +627,14 @@ public class Peripheral extends BluetoothGattCallback {
                     success = (Boolean)refresh.invoke(gatt);
                     if (success) {
                         this.refreshCallback = callback;
-                        Handler handler = new Handler();
                         Timber.i("Waiting " + timeoutMillis + " milliseconds before discovering services");
                         handler.postDelayed(new Runnable() {
                             @Override
                             public void run() {
                                 if (gatt != null) {
                                     try {
-                                        gatt.discoverServices();
+                                        state.moveTo(ConnectionState.State.DISCOVERING);
+                                        discoverServices(gatt);
                                     } catch(Exception e) {
                                         Timber.e("refreshDeviceCache Failed after delay %s", e.getMessage());
                                     }
@@ -319,55 +700,73 @@ public class Peripheral extends BluetoothGattCallback {
         JSONObject json = asJSONObject();
 
         try {
-            JSONArray servicesArray = new JSONArray();
-            JSONArray characteristicsArray = new JSONArray();
-            json.put("services", servicesArray);
-            json.put("characteristics", characteristicsArray);
+            if (isConnected() && gatt != null) {
+                ServiceCache.Entry services = getServicesJSON(gatt);
+                json.put("services", services.services);
+                json.put("characteristics", services.characteristics);
+            } else {
+                json.put("services", new JSONArray());
+                json.put("characteristics", new JSONArray());
+            }
+        } catch (JSONException e) { // TODO better error handling
+            e.printStackTrace();
+        }
+
+        return json;
+    }
+
+    // the serialized services, rebuilt only when the GATT database changed since it was cached
+    private ServiceCache.Entry getServicesJSON(BluetoothGatt gatt) throws JSONException {
+        String address = device.getAddress();
+        long fingerprint = ServiceCache.fingerprint(gatt);
+        ServiceCache.Entry entry = ServiceCache.get(address, fingerprint);
+        if (entry != null) {
+            return entry;
+        }
 
-            if (connected && gatt != null) {
-                for (BluetoothGattService service : gatt.getServices()) {
-                    servicesArray.put(UUIDHelper.uuidToString(service.getUuid()));
+        JSONArray servicesArray = new JSONArray();
+        JSONArray characteristicsArray = new JSONArray();
+        for (BluetoothGattService service : gatt.getServices()) {
+            servicesArray.put(UUIDHelper.uuidToString(service.getUuid()));
 
-                    for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
-                        JSONObject characteristicsJSON = new JSONObject();
-                        characteristicsArray.put(characteristicsJSON);
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                JSONObject characteristicsJSON = new JSONObject();
+                characteristicsArray.put(characteristicsJSON);
 
-                        characteristicsJSON.put("service", UUIDHelper.uuidToString(service.getUuid()));
-                        characteristicsJSON.put("characteristic", UUIDHelper.uuidToString(characteristic.getUuid()));
-                        //characteristicsJSON.put("instanceId", characteristic.getInstanceId());
+                characteristicsJSON.put("service", UUIDHelper.uuidToString(service.getUuid()));
+                characteristicsJSON.put("characteristic", UUIDHelper.uuidToString(characteristic.getUuid()));
+                //characteristicsJSON.put("instanceId", characteristic.getInstanceId());
 
-                        characteristicsJSON.put("properties", Helper.decodeProperties(characteristic));
-                        // characteristicsJSON.put("propertiesValue", characteristic.getProperties());
+                characteristicsJSON.put("properties", Helper.decodeProperties(characteristic));
+                // characteristicsJSON.put("propertiesValue", characteristic.getProperties());
 
-                        if (characteristic.getPermissions() > 0) {
-                            characteristicsJSON.put("permissions", Helper.decodePermissions(characteristic));
-                            // characteristicsJSON.put("permissionsValue", characteristic.getPermissions());
-                        }
+                if (characteristic.getPermissions() > 0) {
+                    characteristicsJSON.put("permissions", Helper.decodePermissions(characteristic));
+                    // characteristicsJSON.put("permissionsValue", characteristic.getPermissions());
+                }
 
-                        JSONArray descriptorsArray = new JSONArray();
+                JSONArray descriptorsArray = new JSONArray();
 
-                        for (BluetoothGattDescriptor descriptor: characteristic.getDescriptors()) {
-                            JSONObject descriptorJSON = new JSONObject();
-                            descriptorJSON.put("uuid", UUIDHelper.uuidToString(descriptor.getUuid()));
-                            descriptorJSON.put("value", descriptor.getValue()); // always blank
+                for (BluetoothGattDescriptor descriptor: characteristic.getDescriptors()) {
+                    JSONObject descriptorJSON = new JSONObject();
+                    descriptorJSON.put("uuid", UUIDHelper.uuidToString(descriptor.getUuid()));
+                    descriptorJSON.put("value", descriptor.getValue()); // always blank
 
-                            if (descriptor.getPermissions() > 0) {
-                                descriptorJSON.put("permissions", Helper.decodePermissions(descriptor));
-                                // descriptorJSON.put("permissionsValue", descriptor.getPermissions());
-                            }
-                            descriptorsArray.put(descriptorJSON);
-                        }
-                        if (descriptorsArray.length() > 0) {
-                            characteristicsJSON.put("descriptors", descriptorsArray);
-                        }
+                    if (descriptor.getPermissions() > 0) {
+                        descriptorJSON.put("permissions", Helper.decodePermissions(descriptor));
+                        // descriptorJSON.put("permissionsValue", descriptor.getPermissions());
                     }
+                    descriptorsArray.put(descriptorJSON);
+                }
+                if (descriptorsArray.length() > 0) {
+                    characteristicsJSON.put("descriptors", descriptorsArray);
                 }
             }
-        } catch (JSONException e) { // TODO better error handling
-            e.printStackTrace();
         }
 
-        return json;
+        entry = new ServiceCache.Entry(fingerprint, servicesArray, characteristicsArray);
+        ServiceCache.put(address, entry);
+        return entry;
     }
 
     static JSONObject byteArrayToJSON(byte[] bytes) throws JSONException {
@@ -378,11 +777,37 @@ public class Peripheral extends BluetoothGattCallback {
     }
 
     public boolean isConnected() {
-        return connected;
+        ConnectionState.State current = state.get();
+        return current == ConnectionState.State.DISCOVERING || current == ConnectionState.State.READY;
     }
 
+    // waiting for a connection slot, connectGatt or a reconnect attempt
     public boolean isConnecting() {
-        return connecting;
+        ConnectionState.State current = state.get();
+        return current == ConnectionState.State.CONNECTING || current == ConnectionState.State.BACKOFF;
+    }
+
+    // the connection state and how long the transitions took, for profiling connection latency
+    JSONObject getConnectionTimings() {
+        return state.asJSONObject();
+    }
+
+    JSONObject getMetrics(boolean reset) {
+        return metrics.snapshot(reset);
+    }
+
+    // false while the peripheral was only seen by a scan
+    boolean hasConnected() {
+        return state.hasHistory();
+    }
+
+    public boolean isAutoconnect() {
+        return autoconnect;
+    }
+
+    // elapsedRealtime of the last command or notification, used to find idle links
+    long getLastActivity() {
+        return lastActivity;
     }
 
     public BluetoothDevice getDevice() {
@@ -392,104 +817,101 @@ public class Peripheral extends BluetoothGattCallback {
     @Override
     public void onServicesDiscovered(BluetoothGatt gatt, int status) {
         super.onServicesDiscovered(gatt, status);
+        metrics.onStatus(status);
 
-        // refreshCallback is a kludge for refreshing services, if it exists, it temporarily
-        // overrides the connect callback. Unfortunately this edge case make the code confusing.
+        endDiscoveryTrace(status);
+        long traceStart = BLETrace.begin("BLE onServicesDiscovered");
+        try {
+            // refreshCallback is a kludge for refreshing services, if it exists, it temporarily
+            // overrides the connect callback. Unfortunately this edge case make the code confusing.
 
-        if (status == BluetoothGatt.GATT_SUCCESS) {
-            PluginResult result = new PluginResult(PluginResult.Status.OK, this.asJSONObject(gatt));
-            result.setKeepCallback(true);
-            if (refreshCallback != null) {
-                refreshCallback.sendPluginResult(result);
-                refreshCallback = null;
-            } else if (connectCallback != null) {
-                connectCallback.sendPluginResult(result);
-            }
-        } else {
-            Timber.e("Service discovery failed. status = %d", status);
-            if (refreshCallback != null) {
-                refreshCallback.error(this.asJSONObject("Service discovery failed"));
-                refreshCallback = null;
-            }
+            if (claimCommand(BLECommand.DISCOVER_SERVICES, null)) {
+                // the peripheral changed its services on a live link, the connect callback was answered already
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    connectionManager.sendEvent("servicesChanged", this, this.asJSONObject(gatt));
+                } else {
+                    Timber.e("Service rediscovery failed. status = %d", status);
+                }
+                commandCompleted();
+            } else if (status == BluetoothGatt.GATT_SUCCESS) {
+                state.moveTo(ConnectionState.State.READY);
+                // only a usable link ends the reconnect attempts, a link that drops before discovery counts as one
+                disconnectCount = 0;
+                PluginResult result = new PluginResult(PluginResult.Status.OK, this.asJSONObject(gatt));
+                result.setKeepCallback(true);
+                if (refreshCallback != null) {
+                    refreshCallback.sendPluginResult(result);
+                    refreshCallback = null;
+                } else if (connectRecipe != null) {
+                    // the app is told once the recipe is done, the subscriptions wait for its MTU request
+                    connectRecipe.run();
+                    return;
+                } else if (connectCallback != null) {
+                    connectCallback.sendPluginResult(result);
+                }
+                resubscribeAfterConnect();
+            } else {
+                Timber.e("Service discovery failed. status = %d", status);
+                if (refreshCallback != null) {
+                    refreshCallback.error(this.asJSONObject("Service discovery failed"));
+                    refreshCallback = null;
+                }
 
-            peripheralDisconnected("Service discovery failed");
+                peripheralDisconnected("Service discovery failed");
+            }
+        } finally {
+            BLETrace.end("BLE onServicesDiscovered", device.getAddress(), traceStart, status);
         }
     }
 
-    /**
-     * This enum lists all the BLE devices which face issues while we perform a retry after disconnection due to gatt error code (133)
-     */
-    public enum DEVICES_TO_ESCAPE_RETRY {
-        NO_DEVICE("No device"); // Currently we have allowed to retry for all the supported devices. In future, if there are any exceptions, we can add those devices here
-
-        private String text;
+    // API 31, the peripheral's GATT database changed, the cached services are stale
+    // no @Override, the plugin builds with older compileSdk versions too
+    public void onServiceChanged(BluetoothGatt gatt) {
+        Timber.i("onServiceChanged %s", device.getAddress());
+        ServiceCache.invalidate(device.getAddress());
+        // queued, so the discovery doesn't collide with a GATT operation in flight
+        queueCommand(new BLECommand(null, null, null, BLECommand.DISCOVER_SERVICES));
+    }
 
-        DEVICES_TO_ESCAPE_RETRY(String text) {
-            this.text = text;
+    private boolean discoverServices(BluetoothGatt gatt) {
+        if (discoveryTraceStart < 0) {
+            discoveryTraceStart = BLETrace.beginAsync("BLE discoverServices", traceCookie());
         }
+        return gatt.discoverServices();
+    }
 
-        public String getText() {
-            return this.text;
+    // completed in onServicesDiscovered
+    private void rediscoverServices() {
+        if (gatt == null || !discoverServices(gatt)) {
+            endDiscoveryTrace(-1);
+            commandCompleted();
         }
+    }
 
-        public static boolean notMatches(BluetoothDevice device) {
-            if(device!=null) {
-                String text = device.getName();
-                if (text != null ) {
-                    for (DEVICES_TO_ESCAPE_RETRY b : DEVICES_TO_ESCAPE_RETRY.values()) {
-                        if (!text.equals(b.text) || !text.contains(b.text)) {
-                            return true;
-                        }
-                    }
-                }
-            }
-            return false;
-        }
+    // trace sections of a peripheral are told apart by its address
+    private int traceCookie() {
+        return device.getAddress().hashCode();
     }
 
-    private String logConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-        String log = "";
-        log += "** Bluetooth ConnectionStateChangeFor Device " + getGattDeviceName(gatt);
-        log += " Updated bluetooth connection state is " + newState + " ";
-        switch (newState) {
-            case BluetoothGatt.STATE_CONNECTED:
-                log += "STATE_CONNECTED";
-                break;
-            case BluetoothGatt.STATE_CONNECTING:
-                log += "STATE_CONNECTING";
-                break;
-            case BluetoothGatt.STATE_DISCONNECTED:
-                log += "STATE_DISCONNECTED";
-                break;
-            case BluetoothGatt.STATE_DISCONNECTING:
-                log += "STATE_DISCONNECTING";
-                break;
+    private void endConnectTrace(int status) {
+        if (connectTraceStart >= 0) {
+            BLETrace.endAsync("BLE connect", traceCookie(), device.getAddress(), connectTraceStart, status);
+            connectTraceStart = -1;
         }
-        log += " and Status is " + status + " "; // there are many other states which can be apart from success, thus we are also printing the int value
-        switch (status) {
-            case BluetoothGatt.GATT_SUCCESS:
-                log += "GATT_SUCCESS ";
-                break;
-        }
-        return log;
     }
 
-    private String getGattDeviceName(BluetoothGatt gatt) {
-        String deviceName = "";
-        if (gatt != null && gatt.getDevice() != null) {
-            deviceName = gatt.getDevice().getName();
+    private void endDiscoveryTrace(int status) {
+        if (discoveryTraceStart >= 0) {
+            BLETrace.endAsync("BLE discoverServices", traceCookie(), device.getAddress(), discoveryTraceStart, status);
+            discoveryTraceStart = -1;
         }
-        return deviceName;
     }
 
-    private BluetoothDevice getGattDevice(BluetoothGatt gatt) {
-        BluetoothDevice device;
-        if (gatt != null && gatt.getDevice() != null) {
-            device = gatt.getDevice();
-        } else {
-            device = this.device; // a fallback
+    private void endMtuTrace(int status) {
+        if (mtuTraceStart >= 0) {
+            BLETrace.endAsync("BLE requestMtu", traceCookie(), device.getAddress(), mtuTraceStart, status);
+            mtuTraceStart = -1;
         }
-        return device;
     }
 
     @Override
@@ -497,136 +919,75 @@ public class Peripheral extends BluetoothGattCallback {
         // status : Status of the connect or disconnect operation
         // newState : Returns the new connection state. Can be one of BluetoothProfile.STATE_DISCONNECTED or BluetoothProfile#STATE_CONNECTED
         this.gatt = gatt;
-        Timber.i(logConnectionStateChange(gatt, status, newState));
+        BLELog.i("connectionState", device.getAddress(), null, status, newState);
+        metrics.onStatus(status);
+        if (newState == BluetoothGatt.STATE_CONNECTED || newState == BluetoothGatt.STATE_DISCONNECTED) {
+            endConnectTrace(status);
+            connectionManager.onConnectAttemptFinished(this);
+        }
         if (newState == BluetoothGatt.STATE_CONNECTED) {
-            Timber.i("onConnectionStateChange CONNECTED " + getGattDeviceName(gatt));
-            connected = true;
-            connecting = false;
-            gatt.discoverServices();
-            // Firebase analytics connect event
-            Bundle bundle = getFirebaseInfoBundle("CONNECTED");
-            mFirebaseAnalytics.logEvent(BTAnalyticsLogTypes.BT_CONNECTION.toString(), bundle);
-        } else if (newState == BluetoothGatt.STATE_DISCONNECTED) {  // Disconnected
-            Timber.i("onConnectionStateChange STATE_DISCONNECTED " + getGattDeviceName(gatt));
-
-            // Firebase disconnect event
-            Bundle bundle = getFirebaseInfoBundle("DISCONNECTED");
-            bundle.putString("ERROR_CODE", String.valueOf(status)); // disconnection status code
-            mFirebaseAnalytics.logEvent(BTAnalyticsLogTypes.BT_CONNECTION.toString(), bundle);
-
-            if(DEVICES_TO_ESCAPE_RETRY.notMatches(gatt.getDevice())) { // Retry is allowed for the device
-                // Will retry to connect for two times after we receive Gatt status code 133
-                if (status != 133 || disconnectCount >= 2) { /*If more then 2 count gatt close process*/
-                    disconnectCount = 0;
-                    connected = false;
-                    peripheralDisconnected("Peripheral Disconnected");
-                } else { /*reconnection goes here*/
-                    disconnectCount++;
-                    if (connected) {
-                        Timber.i("Reconnection attempt for device " + getGattDeviceName(gatt) + " after gatt status code : " + status);
-                        disconnect();
-                    } else {
-                        Timber.i("Gatt status code " + status + " for device " + getGattDeviceName(gatt) );
-                        final Handler handler = new Handler(Looper.getMainLooper());
-                        handler.postDelayed(() -> {
-                            if (connectCallback != null && currentActivity != null) {
-                                Timber.i("Got callback, Will Retry connection after 100ms");
-                                connect(connectCallback, currentActivity, false); // it is recommended to retry after 100ms in case of gatt 133 connection issue
-                            }
-                        }, 100);
-
-                    }
-                }
+            newConnection = state.is(ConnectionState.State.CONNECTING);
+            state.moveTo(ConnectionState.State.DISCOVERING);
+            handler.removeCallbacks(connectTimeoutRunnable);
+            lastActivity = SystemClock.elapsedRealtime();
+            if (connectRecipe != null) {
+                connectRecipe.stepDone("connect");
             } else {
-                Timber.i("onConnectionStateChange DISCONNECTED for " + getGattDeviceName(gatt));
-                connected = false;
-                peripheralDisconnected("Peripheral Disconnected");
+                DeviceProfile profile = DeviceProfile.get(device);
+                if (profile.connectionPriority >= 0) {
+                    requestConnectionPriority(profile.connectionPriority);
+                }
             }
-        } else {
-            Timber.i("onConnectionStateChange else part! " + newState + " " + getGattDeviceName(gatt));
-        }
-    }
-
-    private String isDevicePaired() {
-        Timber.i("Bond state -> " + this.getGattDevice(gatt).getBondState());
-        if (NATIVE_PAIRING_NOT_SUPPORTED_DEVICES.matches(this.getGattDevice(gatt))) {
-            Timber.i("This device does not support native pairing " + this.getGattDevice(gatt).getName());
-            return "NA";
-        }else {
-            Timber.i("isPaired -> " + (new Integer(this.getGattDevice(gatt).getBondState()).equals(new Integer(BluetoothDevice.BOND_BONDED))));
-            return "" + (new Integer(this.getGattDevice(gatt).getBondState()).equals(new Integer(BluetoothDevice.BOND_BONDED)));
-        }
-
-    }
-
-    /**
-     * This enum will contain devices for which cannot be natively paired
-     */
-    enum NATIVE_PAIRING_NOT_SUPPORTED_DEVICES {
-        WELCH_SC100("SC100"),
-        WELCH_BP100("BP100"),
-        FORAIR20("IR20");
-
-        private String text;
-
-        NATIVE_PAIRING_NOT_SUPPORTED_DEVICES(String text) {
-            this.text = text;
-        }
+            discoverServices(gatt);
+            // Firebase analytics connect event
+            analytics.logConnection(device, "CONNECTED", -1, analyticsRssi());
+        } else if (newState == BluetoothGatt.STATE_DISCONNECTED) {  // Disconnected
+            handler.removeCallbacks(connectTimeoutRunnable);
 
-        public String getText() {
-            return this.text;
-        }
+            // Firebase disconnect event with the disconnection status code
+            analytics.logConnection(device, "DISCONNECTED", status, analyticsRssi());
 
-        public static boolean matches(BluetoothDevice device) {
-            if(device!=null) {
-                String text = device.getName();
-                if (text != null ) {
-                    for (NATIVE_PAIRING_NOT_SUPPORTED_DEVICES b : NATIVE_PAIRING_NOT_SUPPORTED_DEVICES.values()) {
-                        if (text.equals(b.text) || text.contains(b.text)) {
-                            return true;
-                        }
-                    }
-                }
+            // the reconnect policy decides if and when to retry, by default twice for gatt status code 133
+            // devices that must not retry have a device profile with reconnect maxAttempts 0
+            if (!scheduleReconnect(status)) {
+                peripheralDisconnected("Peripheral Disconnected");
             }
-            return false;
         }
     }
 
-    private Bundle getFirebaseInfoBundle(String isConnected) {
-        Bundle bundle = new Bundle();
-        SupportedPeripherals templateDevice = SupportedPeripherals.findMatchingDevice(this.device);
-        if(templateDevice!=null) {
-            Timber.i(templateDevice.getDisplay());
-            Timber.i(templateDevice.getPeripheralType());
-            bundle.putString("DEVICE_NAME", templateDevice.getDisplay());
-            bundle.putString("PERIPHERAL_TYPE", templateDevice.getPeripheralType());
-        } else {
-            bundle.putString("DEVICE_NAME", this.device.getName());
-        }
-        bundle.putString("STATE", isConnected);
-        bundle.putString("PAIRING_STATE", isDevicePaired());
-        if (advertisingRSSI != FAKE_PERIPHERAL_RSSI) {
-             bundle.putInt("BT_RSSI", this.advertisingRSSI);
-        }
-        return bundle;
+    // un-scanned peripherals have no RSSI, Firebase doesn't get the placeholder
+    int analyticsRssi() {
+        return advertisingRSSI != FAKE_PERIPHERAL_RSSI ? advertisingRSSI : AnalyticsQueue.NO_RSSI;
     }
 
     @Override
     public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
         super.onCharacteristicChanged(gatt, characteristic);
-        Timber.i("onCharacteristicChanged %s", characteristic);
+        byte[] value = characteristic.getValue();
+        int length = value != null ? value.length : 0;
+        BLELog.d("notify", device.getAddress(), characteristic.getUuid(), length, 0);
+        metrics.onNotification(length);
+        lastActivity = SystemClock.elapsedRealtime();
 
         SequentialCallbackContext callback = notificationCallbacks.get(generateHashKey(characteristic));
 
         if (callback != null) {
-            callback.sendSequentialResult(characteristic.getValue());
+            callback.sendSequentialResult(value);
         }
     }
 
     @Override
     public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
         super.onCharacteristicRead(gatt, characteristic, status);
-        Timber.i("onCharacteristicRead %s", characteristic);
+        BLELog.d("read", device.getAddress(), characteristic.getUuid(), status, 0);
+        metrics.onStatus(status);
+        if (status == BluetoothGatt.GATT_SUCCESS && characteristic.getValue() != null) {
+            metrics.onBytesIn(characteristic.getValue().length);
+        }
+        if (!claimCommand(BLECommand.READ, characteristic.getUuid())) {
+            BLELog.w("staleCallback", device.getAddress(), characteristic.getUuid(), BLECommand.READ, status);
+            return;
+        }
 
         synchronized(this) {
             if (readCallback != null) {
@@ -646,7 +1007,13 @@ public class Peripheral extends BluetoothGattCallback {
     @Override
     public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
         super.onCharacteristicWrite(gatt, characteristic, status);
-        Timber.i("onCharacteristicWrite %s", characteristic);
+        BLELog.d("write", device.getAddress(), characteristic.getUuid(), status, 0);
+        metrics.onStatus(status);
+        if (!claimCommand(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE,
+                characteristic.getUuid())) {
+            BLELog.w("staleCallback", device.getAddress(), characteristic.getUuid(), characteristic.getWriteType(), status);
+            return;
+        }
 
         synchronized(this) {
             if (writeCallback != null) {
@@ -666,17 +1033,23 @@ public class Peripheral extends BluetoothGattCallback {
     @Override
     public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
         super.onDescriptorWrite(gatt, descriptor, status);
-        Timber.i("onDescriptorWrite %s", descriptor);
-        if (descriptor.getUuid().equals(CLIENT_CHARACTERISTIC_CONFIGURATION_UUID)) {
-            BluetoothGattCharacteristic characteristic = descriptor.getCharacteristic();
-            String key = generateHashKey(characteristic);
-            SequentialCallbackContext callback = notificationCallbacks.get(key);
+        BLELog.d("descriptorWrite", device.getAddress(), descriptor.getUuid(), status, 0);
+        metrics.onStatus(status);
+        BluetoothGattCharacteristic characteristic = descriptor.getCharacteristic();
+        // stopNotification completes without waiting for its descriptor write, only subscriptions wait here
+        if (!descriptor.getUuid().equals(CLIENT_CHARACTERISTIC_CONFIGURATION_UUID)
+                || !claimCommand(BLECommand.REGISTER_NOTIFY, BLECommand.REGISTER_PERSISTENT_NOTIFY, characteristic.getUuid())) {
+            return;
+        }
 
-            if (callback != null) {
-                boolean success = callback.completeSubscription(status);
-                if (!success) {
-                    notificationCallbacks.remove(key);
-                }
+        String key = generateHashKey(characteristic);
+        SequentialCallbackContext callback = notificationCallbacks.get(key);
+
+        if (callback != null) {
+            boolean success = callback.completeSubscription(status);
+            if (!success) {
+                notificationCallbacks.remove(key);
+                subscriptions.remove(key);
             }
         }
         commandCompleted();
@@ -686,6 +1059,11 @@ public class Peripheral extends BluetoothGattCallback {
     @Override
     public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
         super.onReadRemoteRssi(gatt, rssi, status);
+        metrics.onStatus(status);
+        if (!claimCommand(BLECommand.READ_RSSI, null)) {
+            BLELog.w("staleCallback", device.getAddress(), null, BLECommand.READ_RSSI, status);
+            return;
+        }
         synchronized(this) {
             if (readCallback != null) {
                 if (status == BluetoothGatt.GATT_SUCCESS) {
@@ -712,7 +1090,7 @@ public class Peripheral extends BluetoothGattCallback {
     }
 
     // This seems way too complicated
-    private void registerNotifyCallback(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID) {
+    private void registerNotifyCallback(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, boolean persistent) {
 
         if (gatt == null) {
             callbackContext.error("BluetoothGatt is null");
@@ -740,11 +1118,16 @@ public class Peripheral extends BluetoothGattCallback {
 
         String key = generateHashKey(serviceUUID, characteristic);
 
-        notificationCallbacks.put(key, new SequentialCallbackContext(callbackContext));
+        notificationCallbacks.put(key, notificationCallbackFor(callbackContext));
+        if (!(callbackContext instanceof ConnectRecipe.SubscriptionCallback)) {
+            // the recipe subscribes again by itself
+            subscriptions.put(key, new Subscription(serviceUUID, characteristicUUID, callbackContext, persistent));
+        }
 
         if (!gatt.setCharacteristicNotification(characteristic, true)) {
             callbackContext.error("Failed to register notification for " + characteristicUUID);
             notificationCallbacks.remove(key);
+            subscriptions.remove(key);
             commandCompleted();
             return;
         }
@@ -754,6 +1137,7 @@ public class Peripheral extends BluetoothGattCallback {
         if (descriptor == null) {
             callbackContext.error("Set notification failed for " + characteristicUUID);
             notificationCallbacks.remove(key);
+            subscriptions.remove(key);
             commandCompleted();
             return;
         }
@@ -767,13 +1151,25 @@ public class Peripheral extends BluetoothGattCallback {
             LOG.w(TAG, "Characteristic %s does not have NOTIFY or INDICATE property set", characteristicUUID);
         }
 
+        synchronized(this) {
+            pendingSubscriptionKey = key;
+        }
         if (!gatt.writeDescriptor(descriptor)) {
             callbackContext.error("Failed to set client characteristic notification for " + characteristicUUID);
             notificationCallbacks.remove(key);
+            subscriptions.remove(key);
             commandCompleted();
         }
     }
 
+    // notifications of recipe subscriptions go to the recipe callback
+    private SequentialCallbackContext notificationCallbackFor(CallbackContext callbackContext) {
+        if (callbackContext instanceof ConnectRecipe.SubscriptionCallback) {
+            return ((ConnectRecipe.SubscriptionCallback) callbackContext).notificationCallback();
+        }
+        return new SequentialCallbackContext(callbackContext);
+    }
+
     private void removeNotifyCallback(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID) {
 
         if (gatt == null) {
@@ -801,6 +1197,7 @@ public class Peripheral extends BluetoothGattCallback {
         String key = generateHashKey(serviceUUID, characteristic);
 
         notificationCallbacks.remove(key);
+        subscriptions.remove(key);
 
         if (gatt.setCharacteristicNotification(characteristic, false)) {
             BluetoothGattDescriptor descriptor = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIGURATION_UUID);
@@ -893,6 +1290,151 @@ public class Peripheral extends BluetoothGattCallback {
 
     }
 
+    private void setPreferredPhy(CallbackContext callbackContext, int txPhy, int rxPhy, int phyOptions) {
+
+        if (gatt == null) {
+            callbackContext.error("BluetoothGatt is null");
+            commandCompleted();
+            return;
+        }
+        if (Build.VERSION.SDK_INT < 26) {
+            callbackContext.error("Android version does not support setPreferredPhy");
+            commandCompleted();
+            return;
+        }
+
+        // completed in onPhyUpdate, stacks that keep the current PHY may not call it
+        synchronized(this) {
+            setPhyCallback = callbackContext;
+            phyReadFallback = false;
+        }
+        gatt.setPreferredPhy(txPhy, rxPhy, phyOptions);
+        handler.postDelayed(phyUpdateTimeoutRunnable, PHY_UPDATE_TIMEOUT_MILLIS);
+    }
+
+    // no onPhyUpdate, answer setPreferredPhy with the PHY in use, fail it when the read doesn't answer either
+    private void onPhyUpdateTimeout() {
+        boolean readPhy;
+        synchronized(this) {
+            if (setPhyCallback == null) {
+                return;
+            }
+            readPhy = !phyReadFallback;
+            phyReadFallback = true;
+        }
+        BluetoothGatt localGatt = gatt;
+        if (readPhy && localGatt != null) {
+            Timber.i("No onPhyUpdate for %s, reading the PHY", device.getAddress());
+            localGatt.readPhy();
+            handler.postDelayed(phyUpdateTimeoutRunnable, PHY_UPDATE_TIMEOUT_MILLIS);
+        } else {
+            failCommandInFlight("PHY request timed out");
+        }
+    }
+
+    private void readPhy(CallbackContext callbackContext) {
+
+        if (gatt == null) {
+            callbackContext.error("BluetoothGatt is null");
+            commandCompleted();
+            return;
+        }
+        if (Build.VERSION.SDK_INT < 26) {
+            callbackContext.error("Android version does not support readPhy");
+            commandCompleted();
+            return;
+        }
+
+        // completed in onPhyRead
+        synchronized(this) {
+            readPhyCallback = callbackContext;
+        }
+        gatt.readPhy();
+    }
+
+    @Override
+    public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+        super.onPhyUpdate(gatt, txPhy, rxPhy, status);
+        Timber.i("onPhyUpdate tx=%d rx=%d status=%d", txPhy, rxPhy, status);
+        metrics.onStatus(status);
+
+        // a PHY change the peripheral started doesn't answer a pending readPhy
+        CallbackContext callback = null;
+        if (claimCommand(BLECommand.SET_PREFERRED_PHY, null)) {
+            synchronized(this) {
+                callback = setPhyCallback;
+                setPhyCallback = null;
+            }
+        }
+        if (callback != null) {
+            sendPhyResult(callback, txPhy, rxPhy, status);
+            commandCompleted();
+        } else if (status == BluetoothGatt.GATT_SUCCESS) {
+            // the peripheral or the stack changed the PHY
+            connectionManager.sendEvent("phyUpdate", this, phyAsJSONObject(txPhy, rxPhy));
+        }
+    }
+
+    @Override
+    public void onPhyRead(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+        super.onPhyRead(gatt, txPhy, rxPhy, status);
+        Timber.i("onPhyRead tx=%d rx=%d status=%d", txPhy, rxPhy, status);
+        metrics.onStatus(status);
+        boolean fallback;
+        synchronized(this) {
+            fallback = phyReadFallback;
+        }
+
+        CallbackContext callback;
+        if (claimCommand(BLECommand.READ_PHY, null)) {
+            synchronized(this) {
+                callback = readPhyCallback;
+                readPhyCallback = null;
+            }
+        } else if (fallback && claimCommand(BLECommand.SET_PREFERRED_PHY, null)) {
+            // setPreferredPhy kept the PHY, answer it with the one in use
+            synchronized(this) {
+                callback = setPhyCallback;
+                setPhyCallback = null;
+            }
+        } else {
+            BLELog.w("staleCallback", device.getAddress(), null, BLECommand.READ_PHY, status);
+            return;
+        }
+        if (callback != null) {
+            sendPhyResult(callback, txPhy, rxPhy, status);
+            commandCompleted();
+        }
+    }
+
+    private void sendPhyResult(CallbackContext callback, int txPhy, int rxPhy, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            callback.success(phyAsJSONObject(txPhy, rxPhy));
+        } else {
+            callback.error("PHY request failed status=" + status);
+        }
+    }
+
+    private static JSONObject phyAsJSONObject(int txPhy, int rxPhy) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("txPhy", phyToString(txPhy));
+            json.put("rxPhy", phyToString(rxPhy));
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        return json;
+    }
+
+    private static String phyToString(int phy) {
+        if (phy == BluetoothDevice.PHY_LE_2M) {
+            return "2M";
+        } else if (phy == BluetoothDevice.PHY_LE_CODED) {
+            return "coded";
+        }
+        return "1M";
+    }
+
     private void readRSSI(CallbackContext callbackContext) {
 
         if (gatt == null) {
@@ -1030,6 +1572,12 @@ public class Peripheral extends BluetoothGattCallback {
         queueCommand(command);
     }
 
+    // the subscription is registered again after every reconnect, until stopNotification or disconnect
+    public void queueRegisterPersistentNotifyCallback(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID) {
+        BLECommand command = new BLECommand(callbackContext, serviceUUID, characteristicUUID, BLECommand.REGISTER_PERSISTENT_NOTIFY);
+        queueCommand(command);
+    }
+
     public void queueRemoveNotifyCallback(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID) {
         BLECommand command = new BLECommand(callbackContext, serviceUUID, characteristicUUID, BLECommand.REMOVE_NOTIFY);
         queueCommand(command);
@@ -1041,10 +1589,23 @@ public class Peripheral extends BluetoothGattCallback {
         queueCommand(command);
     }
 
+    public void queueSetPreferredPhy(CallbackContext callbackContext, int txPhy, int rxPhy, int phyOptions) {
+        BLECommand command = new BLECommand(callbackContext, txPhy, rxPhy, phyOptions, BLECommand.SET_PREFERRED_PHY);
+        queueCommand(command);
+    }
+
+    public void queueReadPhy(CallbackContext callbackContext) {
+        BLECommand command = new BLECommand(callbackContext, 0, 0, 0, BLECommand.READ_PHY);
+        queueCommand(command);
+    }
+
     public void queueCleanup() {
         bleProcessing.set(true); // Stop anything else trying to process
         for (BLECommand command = commandQueue.poll(); command != null; command = commandQueue.poll()) {
-            command.getCallbackContext().error("Peripheral Disconnected");
+            metrics.onDequeued();
+            if (command.getCallbackContext() != null) {
+                command.getCallbackContext().error("Peripheral Disconnected");
+            }
         }
         bleProcessing.set(false); // Now re-allow processing
 
@@ -1058,78 +1619,163 @@ public class Peripheral extends BluetoothGattCallback {
     }
 
     public void writeL2CapChannel(CallbackContext callbackContext, int psm, byte[] data) {
-        Timber.i("L2CAP Write %s", psm);
+        BLELog.d("l2capWrite", device.getAddress(), null, psm, data.length);
         getOrAddL2CAPContext(psm).writeL2CapChannel(callbackContext, data);
     }
 
     private void callbackCleanup() {
-        synchronized(this) {
-            if (readCallback != null) {
-                readCallback.error(this.asJSONObject("Peripheral Disconnected"));
-                readCallback = null;
-                commandCompleted();
-            }
-            if (writeCallback != null) {
-                writeCallback.error(this.asJSONObject("Peripheral Disconnected"));
-                writeCallback = null;
-                commandCompleted();
-            }
-        }
+        failCommandInFlight("Peripheral Disconnected");
     }
 
     // add a new command to the queue
     private void queueCommand(BLECommand command) {
-        Timber.i("Queuing Command %s", command);
+        lastActivity = SystemClock.elapsedRealtime();
+        command.setQueuedAt(System.nanoTime());
+        long depth = metrics.onQueued();
         commandQueue.add(command);
+        BLELog.d("queue", device.getAddress(), command.getCharacteristicUUID(), command.getType(), depth);
 
-        PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
-        result.setKeepCallback(true);
-        command.getCallbackContext().sendPluginResult(result);
+        if (command.getCallbackContext() != null) {
+            PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+            result.setKeepCallback(true);
+            command.getCallbackContext().sendPluginResult(result);
+        }
+
+        runOnLoop(processCommandsRunnable);
+    }
+
+    // true when the callback answers the command in flight, the callback then completes it
+    private synchronized boolean claimCommand(int type, int otherType, UUID characteristicUUID) {
+        BLECommand command = inFlight;
+        if (command == null || (command.getType() != type && command.getType() != otherType)) {
+            return false;
+        }
+        if (characteristicUUID != null && !characteristicUUID.equals(command.getCharacteristicUUID())) {
+            return false;
+        }
+        inFlight = null;
+        return true;
+    }
 
-        processCommands();
+    private boolean claimCommand(int type, UUID characteristicUUID) {
+        return claimCommand(type, type, characteristicUUID);
+    }
+
+    // answer the command in flight with an error and continue with the next one, false when none is in flight
+    private boolean failCommandInFlight(String message) {
+        BLECommand command;
+        String subscriptionKey;
+        synchronized(this) {
+            command = inFlight;
+            subscriptionKey = pendingSubscriptionKey;
+            inFlight = null;
+            pendingSubscriptionKey = null;
+            readCallback = null;
+            writeCallback = null;
+            setPhyCallback = null;
+            readPhyCallback = null;
+        }
+        if (command == null) {
+            return false;
+        }
+
+        if (subscriptionKey != null) {
+            // the app waits for the result of the descriptor write
+            SequentialCallbackContext callback = notificationCallbacks.remove(subscriptionKey);
+            subscriptions.remove(subscriptionKey);
+            if (callback != null) {
+                callback.failSubscription(message);
+            }
+        } else if (command.getCallbackContext() != null) {
+            command.getCallbackContext().error(this.asJSONObject(message));
+        }
+        commandCompleted();
+        return true;
     }
 
     // command finished, queue the next command
     private void commandCompleted() {
-        Timber.i("Processing Complete");
+        BLELog.v("complete", device.getAddress(), null, 0, 0);
+        handler.removeCallbacks(commandTimeoutRunnable);
+        handler.removeCallbacks(phyUpdateTimeoutRunnable);
+        synchronized(this) {
+            inFlight = null;
+            pendingSubscriptionKey = null;
+        }
+        if (dispatchedCommand >= 0) {
+            BLETrace.endAsync(COMMAND_SECTIONS[dispatchedCommand], traceCookie(), device.getAddress(), dispatchedAt, dispatchedCommand);
+            metrics.onCompleted(dispatchedCommand, System.nanoTime() - dispatchedAt);
+            dispatchedCommand = -1;
+        }
         bleProcessing.set(false);
-        processCommands();
+        // callbacks before API 26 run on a binder thread, dispatch from the peripheral's loop
+        runOnLoop(processCommandsRunnable);
+    }
+
+    // the peripheral didn't answer in time, fail the command and continue with the next one
+    // its callback may still come, it doesn't match the next command and is dropped
+    private void onCommandTimeout() {
+        if (failCommandInFlight("Command timed out")) {
+            Timber.w("Command for %s timed out after %d ms", device.getAddress(), deviceProfile.commandTimeoutMillis);
+            metrics.onTimeout();
+        }
     }
 
     // process the queue
     private void processCommands() {
         final boolean canProcess = bleProcessing.compareAndSet(false, true);
         if (!canProcess) { return; }
-        Timber.i("Processing Commands");
 
         BLECommand command = commandQueue.poll();
         if (command != null) {
-            if (command.getType() == BLECommand.READ) {
-                Timber.i("Read %s", command.getCharacteristicUUID());
-                readCharacteristic(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID());
-            } else if (command.getType() == BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT) {
-                Timber.i("Write %s", command.getCharacteristicUUID());
-                writeCharacteristic(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID(), command.getData(), command.getType());
-            } else if (command.getType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
-                Timber.i("Write No Response %s", command.getCharacteristicUUID());
-                writeCharacteristic(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID(), command.getData(), command.getType());
-            } else if (command.getType() == BLECommand.REGISTER_NOTIFY) {
-                Timber.i("Register Notify %s", command.getCharacteristicUUID());
-                registerNotifyCallback(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID());
-            } else if (command.getType() == BLECommand.REMOVE_NOTIFY) {
-                Timber.i("Remove Notify %s", command.getCharacteristicUUID());
-                removeNotifyCallback(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID());
-            } else if (command.getType() == BLECommand.READ_RSSI) {
-                Timber.i("Read RSSI");
-                readRSSI(command.getCallbackContext());
-            } else {
-                // this shouldn't happen
-                bleProcessing.set(false);
-                throw new RuntimeException("Unexpected BLE Command type " + command.getType());
+            long depth = metrics.onDequeued();
+            BLELog.d("dispatch", device.getAddress(), command.getCharacteristicUUID(), command.getType(), depth);
+            synchronized(this) {
+                inFlight = command;
+            }
+            dispatchedAt = System.nanoTime();
+            dispatchedCommand = PeripheralMetrics.commandIndex(command.getType());
+            metrics.onDispatched(dispatchedCommand, dispatchedAt - command.getQueuedAt(),
+                    command.getData() != null ? command.getData().length : 0);
+            BLETrace.span("BLE queueWait", device.getAddress(), command.getQueuedAt(), dispatchedAt, command.getType());
+            BLETrace.beginAsync(COMMAND_SECTIONS[dispatchedCommand], traceCookie());
+            // armed before dispatching, commands that fail right away complete inside the dispatch
+            if (deviceProfile.commandTimeoutMillis > 0) {
+                handler.postDelayed(commandTimeoutRunnable, deviceProfile.commandTimeoutMillis);
+            }
+            long traceStart = BLETrace.begin("BLE dispatch");
+            try {
+                if (command.getType() == BLECommand.READ) {
+                    readCharacteristic(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID());
+                } else if (command.getType() == BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT) {
+                    writeCharacteristic(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID(), command.getData(), command.getType());
+                } else if (command.getType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
+                    writeCharacteristic(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID(), command.getData(), command.getType());
+                } else if (command.getType() == BLECommand.REGISTER_NOTIFY) {
+                    registerNotifyCallback(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID(), false);
+                } else if (command.getType() == BLECommand.REGISTER_PERSISTENT_NOTIFY) {
+                    registerNotifyCallback(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID(), true);
+                } else if (command.getType() == BLECommand.REMOVE_NOTIFY) {
+                    removeNotifyCallback(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID());
+                } else if (command.getType() == BLECommand.READ_RSSI) {
+                    readRSSI(command.getCallbackContext());
+                } else if (command.getType() == BLECommand.SET_PREFERRED_PHY) {
+                    setPreferredPhy(command.getCallbackContext(), command.getTxPhy(), command.getRxPhy(), command.getPhyOptions());
+                } else if (command.getType() == BLECommand.READ_PHY) {
+                    readPhy(command.getCallbackContext());
+                } else if (command.getType() == BLECommand.DISCOVER_SERVICES) {
+                    rediscoverServices();
+                } else {
+                    // this shouldn't happen
+                    bleProcessing.set(false);
+                    throw new RuntimeException("Unexpected BLE Command type " + command.getType());
+                }
+            } finally {
+                BLETrace.end("BLE dispatch", device.getAddress(), traceStart, command.getType());
             }
         } else {
             bleProcessing.set(false);
-            Timber.i("Command Queue is empty.");
+            BLELog.v("queueEmpty", device.getAddress(), null, 0, 0);
         }
 
     }
@@ -1142,8 +1788,27 @@ public class Peripheral extends BluetoothGattCallback {
         return serviceUUID + "|" + characteristic.getUuid() + "|" + characteristic.getInstanceId();
     }
 
-    public void connectL2cap(CallbackContext callbackContext, int psm, boolean secureChannel) {
-        getOrAddL2CAPContext(psm).connectL2cap(callbackContext, secureChannel);
+    public void connectL2cap(CallbackContext callbackContext, int psm, L2CAPOptions options) {
+        getOrAddL2CAPContext(psm).connectL2cap(callbackContext, options);
+    }
+
+    public void sendFileL2Cap(CallbackContext callbackContext, int psm, File file) {
+        Timber.i("L2CAP Send File %s %s", psm, file);
+        getOrAddL2CAPContext(psm).sendFile(callbackContext, file);
+    }
+
+    public void receiveFileL2Cap(CallbackContext callbackContext, int psm, File file, long length) {
+        Timber.i("L2CAP Receive File %s %s", psm, file);
+        getOrAddL2CAPContext(psm).receiveFile(callbackContext, file, length);
+    }
+
+    // null when the channel was never opened
+    public JSONObject getL2CapStats(int psm) {
+        L2CAPContext context;
+        synchronized (l2capContexts) {
+            context = l2capContexts.get(psm);
+        }
+        return context != null ? context.getStats() : null;
     }
 
     public void disconnectL2Cap(CallbackContext callbackContext, int psm) {
@@ -1158,7 +1823,11 @@ public class Peripheral extends BluetoothGattCallback {
     }
 
     public boolean isL2capConnected(int psm) {
-        return getOrAddL2CAPContext(psm).isConnected();
+        L2CAPContext context;
+        synchronized (l2capContexts) {
+            context = l2capContexts.get(psm);
+        }
+        return context != null && context.isConnected();
     }
 
     public void registerL2CapReceiver(CallbackContext callbackContext, int psm) {
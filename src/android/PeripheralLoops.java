@@ -0,0 +1,45 @@
+package com.megster.cordova.ble.central;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import timber.log.Timber;
+
+/**
+ * The event loops peripherals run on. A peripheral always uses the same loop, picked by its address, for its
+ * GATT callbacks, its command queue and its timers, so its state is only changed on one thread. Peripherals
+ * share a few loops instead of each starting a thread, scanning alone creates a peripheral for every device
+ * in range.
+ */
+class PeripheralLoops {
+
+    static final int LOOP_COUNT = 4;
+
+    private static HandlerThread[] threads;
+
+    static synchronized Looper looperFor(String address) {
+        if (threads == null) {
+            threads = new HandlerThread[LOOP_COUNT];
+        }
+        int index = (address.hashCode() & 0x7FFFFFFF) % LOOP_COUNT;
+        if (threads[index] == null) {
+            threads[index] = new HandlerThread("Peripheral-" + index);
+            threads[index].start();
+        }
+        return threads[index].getLooper();
+    }
+
+    // the plugin is destroyed, messages already posted, like the final disconnects, still run
+    static synchronized void shutdown() {
+        if (threads == null) {
+            return;
+        }
+        Timber.i("Stopping peripheral loops");
+        for (HandlerThread thread : threads) {
+            if (thread != null) {
+                thread.quitSafely();
+            }
+        }
+        threads = null;
+    }
+}
@@ -0,0 +1,216 @@
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.SystemClock;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Performance counters of a peripheral: queue depth, queue wait and GATT round trip per command type,
+ * notifications, bytes, reconnects and GATT status codes. Recording is a few atomic operations on
+ * preallocated arrays, no locks and no allocations, so it is always on. getMetrics turns them into JSON.
+ *
+ * Times are histograms with power of two buckets in milliseconds, bucket i counts times below 2^i ms.
+ */
+class PeripheralMetrics {
+
+    static final String[] COMMANDS = {
+            "read", "write", "writeWithoutResponse", "startNotification", "stopNotification",
+            "readRSSI", "setPreferredPhy", "readPhy", "discoverServices"
+    };
+    static final int BUCKETS = 14; // the last one holds everything from 4096 ms
+    // gatt status codes up to 257 (GATT_FAILURE) are counted on their own, anything else together
+    private static final int STATUS_CODES = 259;
+    private static final int OTHER_STATUS = STATUS_CODES - 1;
+
+    private final AtomicLongArray waitHistogram = new AtomicLongArray(COMMANDS.length * BUCKETS);
+    private final AtomicLongArray waitTotal = new AtomicLongArray(COMMANDS.length);
+    private final AtomicLongArray roundTripHistogram = new AtomicLongArray(COMMANDS.length * BUCKETS);
+    private final AtomicLongArray roundTripTotal = new AtomicLongArray(COMMANDS.length);
+    private final AtomicLongArray roundTripMax = new AtomicLongArray(COMMANDS.length);
+    private final AtomicLongArray commands = new AtomicLongArray(COMMANDS.length);
+    private final AtomicLongArray statusCodes = new AtomicLongArray(STATUS_CODES);
+
+    private final AtomicLong queueDepth = new AtomicLong();
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+    private final AtomicLong notifications = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong since = new AtomicLong(SystemClock.elapsedRealtime());
+
+    // index into COMMANDS for a BLECommand type
+    static int commandIndex(int type) {
+        if (type == BLECommand.READ) {
+            return 0;
+        } else if (type == BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT) {
+            return 1;
+        } else if (type == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
+            return 2;
+        } else if (type == BLECommand.REGISTER_NOTIFY || type == BLECommand.REGISTER_PERSISTENT_NOTIFY) {
+            return 3;
+        } else if (type == BLECommand.REMOVE_NOTIFY) {
+            return 4;
+        } else if (type == BLECommand.READ_RSSI) {
+            return 5;
+        } else if (type == BLECommand.SET_PREFERRED_PHY) {
+            return 6;
+        } else if (type == BLECommand.DISCOVER_SERVICES) {
+            return 8;
+        }
+        return 7;
+    }
+
+    // returns the queue depth
+    long onQueued() {
+        long depth = queueDepth.incrementAndGet();
+        updateMax(maxQueueDepth, depth);
+        return depth;
+    }
+
+    // the command left the queue, dispatched or failed because the peripheral disconnected
+    long onDequeued() {
+        return queueDepth.decrementAndGet();
+    }
+
+    void onDispatched(int command, long waitNanos, int bytes) {
+        commands.incrementAndGet(command);
+        long millis = waitNanos / 1000000;
+        waitHistogram.incrementAndGet(command * BUCKETS + bucket(millis));
+        waitTotal.addAndGet(command, millis);
+        if (bytes > 0) {
+            bytesOut.addAndGet(bytes);
+        }
+    }
+
+    void onCompleted(int command, long roundTripNanos) {
+        long millis = roundTripNanos / 1000000;
+        roundTripHistogram.incrementAndGet(command * BUCKETS + bucket(millis));
+        roundTripTotal.addAndGet(command, millis);
+        long max;
+        while (millis > (max = roundTripMax.get(command)) && !roundTripMax.compareAndSet(command, max, millis)) {
+            // another thread raised the maximum, check again
+        }
+    }
+
+    void onNotification(int bytes) {
+        notifications.incrementAndGet();
+        bytesIn.addAndGet(bytes);
+    }
+
+    void onBytesIn(int bytes) {
+        bytesIn.addAndGet(bytes);
+    }
+
+    void onStatus(int status) {
+        statusCodes.incrementAndGet(status >= 0 && status < OTHER_STATUS ? status : OTHER_STATUS);
+    }
+
+    void onReconnect() {
+        reconnects.incrementAndGet();
+    }
+
+    void onTimeout() {
+        timeouts.incrementAndGet();
+    }
+
+    private static int bucket(long millis) {
+        if (millis <= 0) {
+            return 0;
+        }
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // another thread raised the maximum, check again
+        }
+    }
+
+    /**
+     * A snapshot of the counters, reset starts counting from zero again. The queue depth isn't reset.
+     *
+     * { since: 60000, queueDepth: 0, maxQueueDepth: 3, notifications: 1200, notificationRate: 20, bytesIn: 24000,
+     *   bytesOut: 512, reconnects: 1, timeouts: 0, statusCodes: { '0': 1300, '133': 1 },
+     *   commands: { write: { count: 32, wait: { total: 40, histogram: [..] }, roundTrip: { total: 960, max: 75, histogram: [..] } } } }
+     */
+    JSONObject snapshot(boolean reset) {
+        JSONObject json = new JSONObject();
+        long now = SystemClock.elapsedRealtime();
+        long elapsed = now - (reset ? since.getAndSet(now) : since.get());
+        try {
+            json.put("since", elapsed);
+            json.put("queueDepth", queueDepth.get());
+            json.put("maxQueueDepth", read(maxQueueDepth, reset));
+            long notificationCount = read(notifications, reset);
+            json.put("notifications", notificationCount);
+            // notifications per second
+            json.put("notificationRate", elapsed > 0 ? notificationCount * 1000.0 / elapsed : 0);
+            json.put("bytesIn", read(bytesIn, reset));
+            json.put("bytesOut", read(bytesOut, reset));
+            json.put("reconnects", read(reconnects, reset));
+            json.put("timeouts", read(timeouts, reset));
+
+            JSONObject statuses = new JSONObject();
+            for (int i = 0; i < STATUS_CODES; i++) {
+                long count = read(statusCodes, i, reset);
+                if (count > 0) {
+                    statuses.put(i == OTHER_STATUS ? "other" : String.valueOf(i), count);
+                }
+            }
+            json.put("statusCodes", statuses);
+
+            JSONObject commandsJSON = new JSONObject();
+            for (int i = 0; i < COMMANDS.length; i++) {
+                long count = read(commands, i, reset);
+                JSONObject wait = new JSONObject();
+                wait.put("total", read(waitTotal, i, reset));
+                wait.put("histogram", histogram(waitHistogram, i, reset));
+
+                JSONObject roundTrip = new JSONObject();
+                roundTrip.put("total", read(roundTripTotal, i, reset));
+                roundTrip.put("max", read(roundTripMax, i, reset));
+                roundTrip.put("histogram", histogram(roundTripHistogram, i, reset));
+
+                if (count == 0) {
+                    continue;
+                }
+                JSONObject command = new JSONObject();
+                command.put("count", count);
+                command.put("wait", wait);
+                command.put("roundTrip", roundTrip);
+                commandsJSON.put(COMMANDS[i], command);
+            }
+            json.put("commands", commandsJSON);
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        if (reset) {
+            maxQueueDepth.set(queueDepth.get());
+        }
+        return json;
+    }
+
+    private static long read(AtomicLong counter, boolean reset) {
+        return reset ? counter.getAndSet(0) : counter.get();
+    }
+
+    private static long read(AtomicLongArray counters, int index, boolean reset) {
+        return reset ? counters.getAndSet(index, 0) : counters.get(index);
+    }
+
+    private static JSONArray histogram(AtomicLongArray histogram, int command, boolean reset) {
+        JSONArray json = new JSONArray();
+        for (int i = 0; i < BUCKETS; i++) {
+            json.put(read(histogram, command * BUCKETS + i, reset));
+        }
+        return json;
+    }
+}
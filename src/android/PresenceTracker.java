@@ -0,0 +1,201 @@
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Keeps track of which scanned devices are currently in range. A device "appears" the first time it is seen
+ * and is "lost" when it has not been seen for the timeout while a scan is running, or when the scanner
+ * reports CALLBACK_TYPE_MATCH_LOST for it.
+ */
+class PresenceTracker {
+
+    static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+    private static final int RSSI_HISTORY_SIZE = 8;
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+    private static class Presence {
+        final BluetoothDevice device;
+        long lastSeen;
+        // ring buffer, rssiCount is the total number of samples recorded
+        final int[] rssiHistory = new int[RSSI_HISTORY_SIZE];
+        int rssiCount;
+
+        Presence(BluetoothDevice device) {
+            this.device = device;
+        }
+
+        void seen(int rssi, long now) {
+            lastSeen = now;
+            rssiHistory[rssiCount % RSSI_HISTORY_SIZE] = rssi;
+            rssiCount++;
+        }
+    }
+
+    private final ScanScheduler scanScheduler;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable sweepRunnable = this::sweep;
+
+    // key is the MAC Address
+    private final Map<String, Presence> inRange = new LinkedHashMap<String, Presence>();
+    private long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private CallbackContext presenceCallback;
+    private boolean sweepScheduled = false;
+    private boolean scanPaused = false;
+    private long scanResumedAt = 0;
+
+    PresenceTracker(ScanScheduler scanScheduler) {
+        this.scanScheduler = scanScheduler;
+    }
+
+    synchronized boolean hasPresenceCallback() {
+        return presenceCallback != null;
+    }
+
+    synchronized void setPresenceCallback(CallbackContext callbackContext, long timeoutMillis) {
+        this.presenceCallback = callbackContext;
+        this.timeoutMillis = timeoutMillis > 0 ? timeoutMillis : DEFAULT_TIMEOUT_MILLIS;
+    }
+
+    synchronized void removePresenceCallback() {
+        if (presenceCallback != null) {
+            // Clear callback in JavaScript without actually calling it
+            PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+            result.setKeepCallback(false);
+            presenceCallback.sendPluginResult(result);
+            presenceCallback = null;
+        }
+    }
+
+    synchronized void onSeen(BluetoothDevice device, int rssi) {
+        String address = device.getAddress();
+        Presence presence = inRange.get(address);
+        boolean appeared = presence == null;
+        if (appeared) {
+            presence = new Presence(device);
+            inRange.put(address, presence);
+        }
+        presence.seen(rssi, SystemClock.elapsedRealtime());
+
+        if (appeared) {
+            sendPresenceEvent("appeared", presence);
+            scheduleSweep();
+        }
+    }
+
+    synchronized void onLost(BluetoothDevice device) {
+        Presence presence = inRange.remove(device.getAddress());
+        if (presence != null) {
+            sendPresenceEvent("lost", presence);
+        }
+    }
+
+    // a scan session started, devices expire again from now on
+    synchronized void onScanStarted() {
+        if (scanPaused) {
+            scanPaused = false;
+            scanResumedAt = SystemClock.elapsedRealtime();
+        }
+        scheduleSweep();
+    }
+
+    synchronized JSONArray asJSONArray() {
+        JSONArray json = new JSONArray();
+        for (Presence presence : inRange.values()) {
+            json.put(asJSONObject(presence));
+        }
+        return json;
+    }
+
+    synchronized void clear() {
+        handler.removeCallbacks(sweepRunnable);
+        sweepScheduled = false;
+        inRange.clear();
+        presenceCallback = null;
+    }
+
+    private void scheduleSweep() {
+        if (!sweepScheduled && !inRange.isEmpty()) {
+            sweepScheduled = true;
+            handler.postDelayed(sweepRunnable, SWEEP_INTERVAL_MILLIS);
+        }
+    }
+
+    private synchronized void sweep() {
+        sweepScheduled = false;
+        long now = SystemClock.elapsedRealtime();
+
+        // nothing can be seen without a scan, so devices only expire while one is running
+        // the sweep stops meanwhile, onScanStarted schedules it again
+        if (!scanScheduler.hasActiveSessions()) {
+            scanPaused = true;
+            return;
+        }
+        if (scanPaused) {
+            scanPaused = false;
+            scanResumedAt = now;
+        }
+
+        for (Iterator<Presence> iterator = inRange.values().iterator(); iterator.hasNext(); ) {
+            Presence presence = iterator.next();
+            if (now - Math.max(presence.lastSeen, scanResumedAt) > timeoutMillis) {
+                iterator.remove();
+                Timber.i("Device %s not seen for %d ms", presence.device.getAddress(), timeoutMillis);
+                sendPresenceEvent("lost", presence);
+            }
+        }
+        scheduleSweep();
+    }
+
+    private void sendPresenceEvent(String event, Presence presence) {
+        if (presenceCallback != null) {
+            JSONObject json = asJSONObject(presence);
+            try {
+                json.put("event", event);
+            } catch (JSONException e) { // this shouldn't happen
+                e.printStackTrace();
+            }
+            PluginResult result = new PluginResult(PluginResult.Status.OK, json);
+            result.setKeepCallback(true);
+            presenceCallback.sendPluginResult(result);
+        }
+    }
+
+    private JSONObject asJSONObject(Presence presence) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("id", presence.device.getAddress());
+            json.put("name", presence.device.getName());
+            json.put("rssi", presence.rssiHistory[(presence.rssiCount - 1) % RSSI_HISTORY_SIZE]);
+
+            // oldest sample first
+            JSONArray rssiHistory = new JSONArray();
+            int samples = Math.min(presence.rssiCount, RSSI_HISTORY_SIZE);
+            for (int i = presence.rssiCount - samples; i < presence.rssiCount; i++) {
+                rssiHistory.put(presence.rssiHistory[i % RSSI_HISTORY_SIZE]);
+            }
+            json.put("rssiHistory", rssiHistory);
+
+            // convert to wall clock time for JavaScript
+            long ageMillis = SystemClock.elapsedRealtime() - presence.lastSeen;
+            json.put("lastSeen", System.currentTimeMillis() - ageMillis);
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        return json;
+    }
+}
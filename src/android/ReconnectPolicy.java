@@ -0,0 +1,160 @@
+package com.megster.cordova.ble.central;
+
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Decides whether and when a peripheral reconnects after an unexpected disconnect. Rules are looked up by
+ * device family (the SupportedPeripherals peripheral type) and GATT status, the most specific rule wins:
+ * family + status, family, device profile, status, default. Delays grow exponentially between attempts and are jittered so
+ * several peripherals dropping at once don't retry in lockstep.
+ */
+class ReconnectPolicy {
+
+    static class Rule {
+        final int maxAttempts;
+        final long initialDelayMillis;
+        final long maxDelayMillis;
+        final double multiplier;
+        final double jitter; // fraction of the delay, 0 - 1
+
+        Rule(int maxAttempts, long initialDelayMillis, long maxDelayMillis, double multiplier, double jitter) {
+            this.maxAttempts = maxAttempts;
+            this.initialDelayMillis = initialDelayMillis;
+            this.maxDelayMillis = maxDelayMillis;
+            this.multiplier = multiplier;
+            this.jitter = jitter;
+        }
+
+        // missing values are inherited from the parent rule
+        Rule(JSONObject json, Rule parent) {
+            this(json.optInt("maxAttempts", parent.maxAttempts),
+                    json.optLong("initialDelay", parent.initialDelayMillis),
+                    json.optLong("maxDelay", parent.maxDelayMillis),
+                    json.optDouble("multiplier", parent.multiplier),
+                    Math.min(1, Math.max(0, json.optDouble("jitter", parent.jitter))));
+        }
+    }
+
+    static final int GATT_ERROR = 133;
+    // not a gatt status, used when connecting timed out, configured with the "timeout" key
+    static final int STATUS_CONNECT_TIMEOUT = -1;
+
+    // no retries unless configured
+    private static final Rule NO_RETRY = new Rule(0, 100, 5000, 2, 0.2);
+    // the 133 error is usually transient, retry twice as the plugin always did
+    private static final Rule GATT_ERROR_RETRY = new Rule(2, 100, 5000, 2, 0.2);
+
+    private final Random random = new Random();
+
+    private Rule defaultRule;
+    private Map<Integer, Rule> statusRules;
+    private Map<String, Rule> familyRules;
+    private Map<String, Map<Integer, Rule>> familyStatusRules;
+
+    ReconnectPolicy() {
+        reset();
+    }
+
+    synchronized void reset() {
+        defaultRule = NO_RETRY;
+        statusRules = new HashMap<Integer, Rule>();
+        statusRules.put(GATT_ERROR, GATT_ERROR_RETRY);
+        familyRules = new HashMap<String, Rule>();
+        familyStatusRules = new HashMap<String, Map<Integer, Rule>>();
+    }
+
+    /**
+     * Replaces the policy. The format is a rule with optional "statuses" and "families" maps, e.g.
+     * { maxAttempts: 3, initialDelay: 500, statuses: { "133": { maxAttempts: 5 } }, families: { "weight": { ... } } }
+     * A family rule may have its own "statuses" map.
+     */
+    synchronized void configure(JSONObject json) {
+        reset();
+        defaultRule = new Rule(json, NO_RETRY);
+
+        JSONObject statuses = json.optJSONObject("statuses");
+        if (statuses != null) {
+            statusRules.clear();
+            statusRules.putAll(parseStatusRules(statuses, defaultRule));
+        }
+
+        JSONObject families = json.optJSONObject("families");
+        if (families != null) {
+            for (Iterator<String> keys = families.keys(); keys.hasNext(); ) {
+                String family = keys.next();
+                JSONObject familyJSON = families.optJSONObject(family);
+                if (familyJSON == null) {
+                    continue;
+                }
+                Rule familyRule = new Rule(familyJSON, defaultRule);
+                familyRules.put(family, familyRule);
+                JSONObject familyStatuses = familyJSON.optJSONObject("statuses");
+                if (familyStatuses != null) {
+                    familyStatusRules.put(family, parseStatusRules(familyStatuses, familyRule));
+                }
+            }
+        }
+    }
+
+    private static Map<Integer, Rule> parseStatusRules(JSONObject json, Rule parent) {
+        Map<Integer, Rule> rules = new HashMap<Integer, Rule>();
+        for (Iterator<String> keys = json.keys(); keys.hasNext(); ) {
+            String key = keys.next();
+            JSONObject ruleJSON = json.optJSONObject(key);
+            if (ruleJSON == null) {
+                continue;
+            }
+            try {
+                int status = "timeout".equals(key) ? STATUS_CONNECT_TIMEOUT : Integer.parseInt(key);
+                rules.put(status, new Rule(ruleJSON, parent));
+            } catch (NumberFormatException e) {
+                // not a status code, ignore
+            }
+        }
+        return rules;
+    }
+
+    // a rule on its own, e.g. from a device profile
+    static Rule parseRule(JSONObject json) {
+        return new Rule(json, NO_RETRY);
+    }
+
+    synchronized Rule getRule(String family, Rule profileRule, int status) {
+        if (family != null) {
+            Map<Integer, Rule> familyStatuses = familyStatusRules.get(family);
+            if (familyStatuses != null && familyStatuses.containsKey(status)) {
+                return familyStatuses.get(status);
+            }
+            Rule familyRule = familyRules.get(family);
+            if (familyRule != null) {
+                return familyRule;
+            }
+        }
+        if (profileRule != null) {
+            return profileRule;
+        }
+        Rule statusRule = statusRules.get(status);
+        return statusRule != null ? statusRule : defaultRule;
+    }
+
+    /**
+     * Returns the delay before the given attempt (1 based) or -1 when the rule allows no more attempts.
+     */
+    long getDelay(Rule rule, int attempt) {
+        if (attempt > rule.maxAttempts) {
+            return -1;
+        }
+        double delay = rule.initialDelayMillis * Math.pow(rule.multiplier, attempt - 1);
+        delay = Math.min(delay, rule.maxDelayMillis);
+        double offset;
+        synchronized (random) {
+            offset = (random.nextDouble() * 2 - 1) * rule.jitter;
+        }
+        return Math.max(0, Math.round(delay * (1 + offset)));
+    }
+}
@@ -0,0 +1,459 @@
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import timber.log.Timber;
+
+/**
+ * Android silently throttles apps that start more than 5 scans in 30 seconds: the scan "starts" but
+ * never reports anything. The scheduler merges the scan requests of all callers into as few physical
+ * scans as their settings allow, and delays or coalesces starts so the app stays below the limit.
+ */
+class ScanScheduler {
+
+    private static final int MAX_STARTS_PER_WINDOW = 5;
+    private static final long START_WINDOW_MILLIS = 30000;
+    // land deferred starts safely outside of the throttle window
+    private static final long START_MARGIN_MILLIS = 250;
+
+    private final BluetoothAdapter bluetoothAdapter;
+    private final ScanCallback scanCallback;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable reconcileRunnable = this::reconcile;
+
+    // elapsedRealtime of the most recent physical scan starts, used as a ring buffer
+    private final long[] startHistory = new long[MAX_STARTS_PER_WINDOW];
+    private int startHistoryIndex = 0;
+
+    private final List<ScanSession> sessions = new ArrayList<ScanSession>();
+    // one physical scan for every group of sessions with compatible settings
+    private final List<PhysicalScan> scans = new ArrayList<PhysicalScan>();
+    // the scan whose result the plugin callback is handling
+    private PhysicalScan delivering;
+
+    private class ScanSession {
+        final CallbackContext callbackContext;
+        final Set<UUID> serviceUUIDs = new HashSet<UUID>(); // empty matches every device
+        final ScanSettings scanSettings;
+        final boolean reportDuplicates;
+        final Set<String> reported = new HashSet<String>();
+        final Runnable timeout = () -> endSession(this);
+
+        ScanSession(CallbackContext callbackContext, UUID[] serviceUUIDs, ScanSettings scanSettings, boolean reportDuplicates) {
+            this.callbackContext = callbackContext;
+            this.scanSettings = scanSettings;
+            this.reportDuplicates = reportDuplicates;
+            if (serviceUUIDs != null) {
+                for (UUID uuid : serviceUUIDs) {
+                    this.serviceUUIDs.add(uuid);
+                }
+            }
+        }
+
+        boolean matches(List<ParcelUuid> advertisedServices) {
+            if (serviceUUIDs.isEmpty()) {
+                return true;
+            }
+            if (advertisedServices != null) {
+                for (ParcelUuid uuid : advertisedServices) {
+                    if (serviceUUIDs.contains(uuid.getUuid())) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        // sessions share a physical scan only when everything but the scan mode is equal
+        boolean compatible(ScanSession other) {
+            if (other == this) {
+                return true;
+            }
+            ScanSettings a = scanSettings;
+            ScanSettings b = other.scanSettings;
+            // match mode and number of matches have no public getters, they only apply to first and lost
+            // callbacks, so those sessions get a scan of their own
+            if (a.getCallbackType() != ScanSettings.CALLBACK_TYPE_ALL_MATCHES
+                    || b.getCallbackType() != ScanSettings.CALLBACK_TYPE_ALL_MATCHES) {
+                return false;
+            }
+            if (a.getReportDelayMillis() != b.getReportDelayMillis()) {
+                return false;
+            }
+            if (Build.VERSION.SDK_INT >= 26) { // (API 26) Build.VERSION_CODES.O
+                return a.getLegacy() == b.getLegacy() && a.getPhy() == b.getPhy();
+            }
+            return true;
+        }
+
+        // a lost result only goes to the sessions that asked for it
+        boolean wants(int callbackType) {
+            return (scanSettings.getCallbackType() & callbackType) != 0;
+        }
+    }
+
+    /**
+     * A scan started with the system, with its own callback so its results reach only its sessions.
+     */
+    private class PhysicalScan extends ScanCallback {
+        final List<ScanSession> scanSessions = new ArrayList<ScanSession>();
+        Set<UUID> serviceUUIDs = new HashSet<UUID>(); // null when the scan is unfiltered
+        ScanSettings scanSettings;
+
+        // merge a compatible session into the scan
+        void add(ScanSession session) {
+            scanSessions.add(session);
+            if (serviceUUIDs != null) {
+                if (session.serviceUUIDs.isEmpty()) {
+                    serviceUUIDs = null;
+                } else {
+                    serviceUUIDs.addAll(session.serviceUUIDs);
+                }
+            }
+            // the most aggressive scan mode wins, newer sessions win ties
+            if (scanSettings == null || session.scanSettings.getScanMode() >= scanSettings.getScanMode()) {
+                scanSettings = session.scanSettings;
+            }
+        }
+
+        // the running scan already reports everything the wanted scan needs
+        boolean covers(PhysicalScan wanted) {
+            return scanSessions.get(0).compatible(wanted.scanSessions.get(0))
+                    && ScanScheduler.covers(serviceUUIDs, wanted.serviceUUIDs)
+                    && scanSettings.getScanMode() >= wanted.scanSettings.getScanMode();
+        }
+
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            // scan callbacks arrive on the main thread, the plugin callback runs without holding the lock
+            synchronized (ScanScheduler.this) {
+                if (!scans.contains(this)) {
+                    return;
+                }
+                delivering = this;
+            }
+            try {
+                scanCallback.onScanResult(callbackType, result);
+            } finally {
+                synchronized (ScanScheduler.this) {
+                    delivering = null;
+                }
+            }
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            scanCallback.onBatchScanResults(results);
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            scanCallback.onScanFailed(errorCode);
+            ScanScheduler.this.onScanFailed(this, errorCode);
+        }
+    }
+
+    ScanScheduler(BluetoothAdapter bluetoothAdapter, ScanCallback scanCallback) {
+        this.bluetoothAdapter = bluetoothAdapter;
+        this.scanCallback = scanCallback;
+    }
+
+    synchronized boolean hasActiveSessions() {
+        return !sessions.isEmpty();
+    }
+
+    /**
+     * Adds a scan request. Results are delivered to the callback until scanSeconds expire (or forever when
+     * scanSeconds <= 0) or stopAllSessions is called.
+     */
+    synchronized void startSession(CallbackContext callbackContext, UUID[] serviceUUIDs, int scanSeconds,
+                                   ScanSettings scanSettings, boolean reportDuplicates) {
+        ScanSession session = new ScanSession(callbackContext, serviceUUIDs, scanSettings, reportDuplicates);
+        sessions.add(session);
+        if (scanSeconds > 0) {
+            handler.postDelayed(session.timeout, scanSeconds * 1000L);
+        }
+        reconcile();
+    }
+
+    synchronized void stopAllSessions() {
+        for (ScanSession session : new ArrayList<ScanSession>(sessions)) {
+            endSession(session);
+        }
+    }
+
+    // the adapter is off, the physical scans are already gone
+    synchronized void onAdapterDisabled() {
+        scans.clear();
+        stopAllSessions();
+    }
+
+    private synchronized void onScanFailed(PhysicalScan scan, int errorCode) {
+        Timber.e("Scan failed with error code %d", errorCode);
+        if (errorCode == ScanCallback.SCAN_FAILED_ALREADY_STARTED) {
+            return;
+        }
+        // most likely throttled, try again once a start slot frees up
+        scans.remove(scan);
+        handler.removeCallbacks(reconcileRunnable);
+        handler.postDelayed(reconcileRunnable, millisUntilStartSlot() + START_MARGIN_MILLIS);
+    }
+
+    // stop scanning immediately, used when the plugin is torn down
+    synchronized void shutdown() {
+        handler.removeCallbacksAndMessages(null);
+        for (ScanSession session : sessions) {
+            handler.removeCallbacks(session.timeout);
+        }
+        sessions.clear();
+        stopPhysicalScans(new ArrayList<PhysicalScan>(scans));
+    }
+
+    /**
+     * Route a scan result to every session of the scan that reported it whose service filter and callback
+     * type match it.
+     */
+    synchronized void dispatch(int callbackType, ScanResult result, Peripheral peripheral) {
+        if (delivering == null) {
+            return;
+        }
+        ScanRecord scanRecord = result.getScanRecord();
+        List<ParcelUuid> advertisedServices = scanRecord != null ? scanRecord.getServiceUuids() : null;
+        String address = peripheral.getDevice().getAddress();
+
+        JSONObject json = null;
+        for (ScanSession session : delivering.scanSessions) {
+            if (!sessions.contains(session) || !session.wants(callbackType) || !session.matches(advertisedServices)) {
+                continue;
+            }
+            boolean firstSighting = session.reported.add(address);
+            if (!firstSighting && !session.reportDuplicates) {
+                continue;
+            }
+            if (json == null) {
+                json = peripheral.asJSONObject();
+            }
+            PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, json);
+            pluginResult.setKeepCallback(true);
+            session.callbackContext.sendPluginResult(pluginResult);
+        }
+    }
+
+    private synchronized void endSession(ScanSession session) {
+        if (!sessions.remove(session)) {
+            return;
+        }
+        handler.removeCallbacks(session.timeout);
+
+        JSONObject json = new JSONObject();
+        try {
+            json.put("scanEnd", "scanEndSuccess");
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        // Send the result indicating BLE scan is stopped now
+        PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, json);
+        pluginResult.setKeepCallback(true);
+        session.callbackContext.sendPluginResult(pluginResult);
+
+        reconcile();
+    }
+
+    // bring the physical scans in line with the active sessions
+    private synchronized void reconcile() {
+        handler.removeCallbacks(reconcileRunnable);
+
+        if (sessions.isEmpty()) {
+            if (!scans.isEmpty() && startSlotsRemaining() < 2) {
+                // keep the scans running while the start budget is low, so a quick restart costs nothing
+                long delay = millisUntilStartSlot() + START_MARGIN_MILLIS;
+                Timber.i("Keeping idle scan alive for %d ms to avoid throttling", delay);
+                handler.postDelayed(reconcileRunnable, delay);
+            } else {
+                stopPhysicalScans(new ArrayList<PhysicalScan>(scans));
+            }
+            return;
+        }
+
+        // group the sessions into the scans they need
+        List<PhysicalScan> wanted = new ArrayList<PhysicalScan>();
+        for (ScanSession session : sessions) {
+            PhysicalScan group = null;
+            for (PhysicalScan scan : wanted) {
+                if (scan.scanSessions.get(0).compatible(session)) {
+                    group = scan;
+                    break;
+                }
+            }
+            if (group == null) {
+                group = new PhysicalScan();
+                wanted.add(group);
+            }
+            group.add(session);
+        }
+
+        List<PhysicalScan> unused = new ArrayList<PhysicalScan>(scans);
+        List<PhysicalScan> starts = new ArrayList<PhysicalScan>();
+        for (PhysicalScan group : wanted) {
+            PhysicalScan running = findCovering(unused, group);
+            if (running != null) {
+                unused.remove(running);
+                running.scanSessions.clear();
+                running.scanSessions.addAll(group.scanSessions);
+            } else {
+                starts.add(group);
+            }
+        }
+
+        boolean deferred = false;
+        for (PhysicalScan group : starts) {
+            if (startSlotsRemaining() == 0) {
+                // meanwhile a compatible scan that is running reports what it can
+                PhysicalScan running = findCompatible(unused, group);
+                if (running != null) {
+                    unused.remove(running);
+                    running.scanSessions.clear();
+                    running.scanSessions.addAll(group.scanSessions);
+                }
+                deferred = true;
+                continue;
+            }
+            PhysicalScan replaced = findCompatible(unused, group);
+            if (replaced != null) {
+                unused.remove(replaced);
+                stopPhysicalScan(replaced);
+            }
+            startPhysicalScan(group);
+        }
+        stopPhysicalScans(unused);
+
+        if (deferred) {
+            long delay = millisUntilStartSlot() + START_MARGIN_MILLIS;
+            Timber.i("Scan start deferred by %d ms to avoid throttling", delay);
+            handler.postDelayed(reconcileRunnable, delay);
+        }
+    }
+
+    private static PhysicalScan findCovering(List<PhysicalScan> running, PhysicalScan wanted) {
+        for (PhysicalScan scan : running) {
+            if (scan.covers(wanted)) {
+                return scan;
+            }
+        }
+        return null;
+    }
+
+    private static PhysicalScan findCompatible(List<PhysicalScan> running, PhysicalScan wanted) {
+        for (PhysicalScan scan : running) {
+            if (scan.scanSessions.get(0).compatible(wanted.scanSessions.get(0))) {
+                return scan;
+            }
+        }
+        return null;
+    }
+
+    private static boolean covers(Set<UUID> running, Set<UUID> wanted) {
+        if (running == null) {
+            return true;
+        }
+        return wanted != null && running.containsAll(wanted);
+    }
+
+    private void startPhysicalScan(PhysicalScan scan) {
+        if (bluetoothAdapter.getState() != BluetoothAdapter.STATE_ON) {
+            return;
+        }
+        BluetoothLeScanner bluetoothLeScanner = bluetoothAdapter.getBluetoothLeScanner();
+        if (bluetoothLeScanner == null) {
+            return;
+        }
+
+        List<ScanFilter> filters = new ArrayList<ScanFilter>();
+        if (scan.serviceUUIDs != null) {
+            for (UUID uuid : scan.serviceUUIDs) {
+                filters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(uuid)).build());
+            }
+        }
+
+        Timber.i("Starting Scan with %d filters", filters.size());
+        try {
+            bluetoothLeScanner.startScan(filters, scan.scanSettings, scan);
+        } catch (Exception e) {
+            Timber.e("Exception starting scan %s", e.getMessage());
+            return;
+        }
+        recordStart();
+        scans.add(scan);
+    }
+
+    private void stopPhysicalScans(List<PhysicalScan> stopped) {
+        for (PhysicalScan scan : stopped) {
+            stopPhysicalScan(scan);
+        }
+    }
+
+    private void stopPhysicalScan(PhysicalScan scan) {
+        if (!scans.remove(scan)) {
+            return;
+        }
+
+        if (bluetoothAdapter.getState() == BluetoothAdapter.STATE_ON) {
+            Timber.i("Stopping Scan");
+            try {
+                final BluetoothLeScanner bluetoothLeScanner = bluetoothAdapter.getBluetoothLeScanner();
+                if (bluetoothLeScanner != null)
+                    bluetoothLeScanner.stopScan(scan);
+            } catch (Exception e) {
+                Timber.e("Exception stopping scan %s", e.getMessage());
+            }
+        }
+    }
+
+    private void recordStart() {
+        startHistory[startHistoryIndex] = SystemClock.elapsedRealtime();
+        startHistoryIndex = (startHistoryIndex + 1) % MAX_STARTS_PER_WINDOW;
+    }
+
+    private int startSlotsRemaining() {
+        long windowStart = SystemClock.elapsedRealtime() - START_WINDOW_MILLIS;
+        int used = 0;
+        for (long start : startHistory) {
+            if (start != 0 && start > windowStart) {
+                used++;
+            }
+        }
+        return MAX_STARTS_PER_WINDOW - used;
+    }
+
+    // time until the oldest start in the window ages out
+    private long millisUntilStartSlot() {
+        // startHistoryIndex always points at the oldest entry
+        long oldest = startHistory[startHistoryIndex];
+        if (oldest == 0) {
+            return 0;
+        }
+        return Math.max(0, oldest + START_WINDOW_MILLIS - SystemClock.elapsedRealtime());
+    }
+}
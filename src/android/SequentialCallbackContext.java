@@ -72,4 +72,14 @@ public class SequentialCallbackContext {
         this.context.sendPluginResult(result);
         return success;
     }
+
+    // the descriptor write never completed, e.g. it timed out
+    public void failSubscription(String message) {
+        if (subscribed) {
+            return;
+        }
+
+        subscribed = true;
+        this.context.sendPluginResult(new PluginResult(PluginResult.Status.ERROR, message));
+    }
 }
\ No newline at end of file
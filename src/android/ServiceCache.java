@@ -0,0 +1,87 @@
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import org.json.JSONArray;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Caches the serialized services and characteristics of peripherals. Building the JSON formats every UUID
+ * and decodes every property, so it is only done again when the GATT database fingerprint changes or
+ * the entry was invalidated by a service change or a refresh.
+ */
+class ServiceCache {
+
+    private static final int MAX_ENTRIES = 32;
+
+    static class Entry {
+        final long fingerprint;
+        final JSONArray services;
+        final JSONArray characteristics;
+
+        Entry(long fingerprint, JSONArray services, JSONArray characteristics) {
+            this.fingerprint = fingerprint;
+            this.services = services;
+            this.characteristics = characteristics;
+        }
+    }
+
+    // key is the MAC Address, least recently used entries are dropped first
+    private static final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ServiceCache.Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    // the cached JSON if the database still matches the fingerprint, otherwise null
+    static synchronized Entry get(String address, long fingerprint) {
+        Entry entry = entries.get(address);
+        if (entry != null && entry.fingerprint == fingerprint) {
+            return entry;
+        }
+        return null;
+    }
+
+    static synchronized void put(String address, Entry entry) {
+        entries.put(address, entry);
+    }
+
+    static synchronized void invalidate(String address) {
+        entries.remove(address);
+    }
+
+    /**
+     * A hash of the attributes that end up in the JSON. Much cheaper than building the JSON since
+     * nothing is formatted or allocated.
+     */
+    static long fingerprint(BluetoothGatt gatt) {
+        long hash = 17;
+        for (BluetoothGattService service : gatt.getServices()) {
+            hash = hash(hash, service.getUuid());
+            hash = 31 * hash + service.getInstanceId();
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                hash = hash(hash, characteristic.getUuid());
+                hash = 31 * hash + characteristic.getInstanceId();
+                hash = 31 * hash + characteristic.getProperties();
+                hash = 31 * hash + characteristic.getPermissions();
+                for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+                    hash = hash(hash, descriptor.getUuid());
+                    hash = 31 * hash + descriptor.getPermissions();
+                }
+            }
+        }
+        return hash;
+    }
+
+    private static long hash(long hash, UUID uuid) {
+        hash = 31 * hash + uuid.getMostSignificantBits();
+        return 31 * hash + uuid.getLeastSignificantBits();
+    }
+}
@@ -3,6 +3,9 @@ package com.megster.cordova.ble.central;
 import android.bluetooth.BluetoothDevice;
 import android.util.Log;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
@@ -36,6 +39,21 @@ public enum SupportedPeripherals {
 
     private static final String TAG = "SupportedPeripherals";
 
+    // cached values(), which returns a new array on each call
+    private static final SupportedPeripherals[] VALUES = values();
+
+    // number of the group that wraps each name pattern in COMBINED_PATTERN, filled in by combinePatterns
+    // numbered groups because Matcher.start(String) needs API 26
+    private static final int[] GROUP_INDEXES = new int[VALUES.length];
+
+    // all name patterns as one alternation, in declaration order so the first declared match still wins
+    private static final Pattern COMBINED_PATTERN = combinePatterns();
+
+    // device name -> ordinal of the match, NO_MATCH if the name is not supported
+    private static final int NO_MATCH = -1;
+    private static final int MAX_CACHED_NAMES = 256;
+    private static final Map<String, Integer> matchCache = new ConcurrentHashMap<String, Integer>();
+
     SupportedPeripherals(String display, String peripheralType, String patternStr) {
         this.display = display;
         this.peripheralType = peripheralType;
@@ -44,19 +62,66 @@ public enum SupportedPeripherals {
 
     public static SupportedPeripherals findMatchingDevice(BluetoothDevice device) {
         if (device != null) {
-              String deviceName = device.getName();
+            String deviceName = device.getName();
             if (deviceName != null) {
-                for (SupportedPeripherals b : SupportedPeripherals.values()) {
-                    if (b.namePattern.matcher(deviceName).matches()) {
-                        Timber.i("Found supported device " + device + " which matches enum value " + b.getDisplay());
-                        return b;
-                    }
+                SupportedPeripherals b = findMatchingName(deviceName);
+                if (b != null) {
+                    Timber.i("Found supported device %s which matches enum value %s", device, b.getDisplay());
                 }
+                return b;
             }
         }
         return null;
     }
 
+    static SupportedPeripherals findMatchingName(String deviceName) {
+        Integer ordinal = matchCache.get(deviceName);
+        if (ordinal == null) {
+            ordinal = matchName(deviceName);
+            if (matchCache.size() >= MAX_CACHED_NAMES) {
+                matchCache.clear();
+            }
+            matchCache.put(deviceName, ordinal);
+        }
+        return ordinal == NO_MATCH ? null : VALUES[ordinal];
+    }
+
+    private static int matchName(String deviceName) {
+        Matcher matcher = COMBINED_PATTERN.matcher(deviceName);
+        if (matcher.matches()) {
+            for (int i = 0; i < VALUES.length; i++) {
+                if (matcher.start(GROUP_INDEXES[i]) != -1) {
+                    return i;
+                }
+            }
+        }
+        return NO_MATCH;
+    }
+
+    private static Pattern combinePatterns() {
+        StringBuilder combined = new StringBuilder();
+        int group = 1;
+        for (int i = 0; i < VALUES.length; i++) {
+            Pattern pattern = VALUES[i].namePattern;
+            if (i > 0) {
+                combined.append('|');
+            }
+            // the groups of the patterns before this one come first
+            GROUP_INDEXES[i] = group;
+            group += 1 + (pattern != null ? pattern.matcher("").groupCount() : 0);
+            combined.append('(');
+            if (pattern == null) {
+                combined.append("(?!)"); // invalid pattern, never matches
+            } else if ((pattern.flags() & Pattern.CASE_INSENSITIVE) != 0) {
+                combined.append("(?i:").append(pattern.pattern()).append(')');
+            } else {
+                combined.append(pattern.pattern());
+            }
+            combined.append(')');
+        }
+        return Pattern.compile(combined.toString());
+    }
+
     public String getDisplay() {
         return display;
     }
@@ -15,34 +15,66 @@
 package com.megster.cordova.ble.central;
 
 import java.util.UUID;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class UUIDHelper {
 
     // base UUID used to build 128 bit Bluetooth UUIDs
     public static final String UUID_BASE = "0000XXXX-0000-1000-8000-00805f9b34fb";
-    // reuse pattern
-    private static final Pattern pattern = Pattern.compile("0000(.{4})-0000-1000-8000-00805f9b34fb", Pattern.CASE_INSENSITIVE);
+    // the base UUID as bits, a 16 bit UUID goes in bits 32 to 47 of the most significant half
+    private static final long BASE_MSB = 0x0000000000001000L;
+    private static final long BASE_MSB_MASK = 0xFFFF0000FFFFFFFFL;
+    private static final long BASE_LSB = 0x800000805F9B34FBL;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // the same few service and characteristic UUIDs are parsed for every command
+    private static final int MAX_CACHED = 256;
+    private static final ConcurrentHashMap<String, UUID> cache = new ConcurrentHashMap<String, UUID>();
 
     // handle 16 and 128 bit UUIDs
     public static UUID uuidFromString(String uuid) {
+        UUID cached = cache.get(uuid);
+        if (cached != null) {
+            return cached;
+        }
 
+        UUID parsed;
         if (uuid.length() == 4) {
-            uuid = UUID_BASE.replace("XXXX", uuid);
+            parsed = new UUID(BASE_MSB | ((long) parseShortUUID(uuid) << 32), BASE_LSB);
+        } else {
+            parsed = UUID.fromString(uuid);
         }
-        return UUID.fromString(uuid);
+        if (cache.size() >= MAX_CACHED) {
+            cache.clear();
+        }
+        cache.put(uuid, parsed);
+        return parsed;
     }
 
     // return 16 bit UUIDs where possible
     public static String uuidToString(UUID uuid) {
-        String longUUID = uuid.toString();
-        Matcher matcher = pattern.matcher(longUUID);
-        if (matcher.matches()) {
+        long msb = uuid.getMostSignificantBits();
+        if (uuid.getLeastSignificantBits() == BASE_LSB && (msb & BASE_MSB_MASK) == BASE_MSB) {
             // 16 bit UUID
-            return matcher.group(1);
+            int value = (int) (msb >>> 32) & 0xFFFF;
+            return new String(new char[] {
+                    HEX[(value >> 12) & 0xF], HEX[(value >> 8) & 0xF], HEX[(value >> 4) & 0xF], HEX[value & 0xF]
+            });
         } else {
-            return longUUID;
+            return uuid.toString();
+        }
+    }
+
+    private static int parseShortUUID(String uuid) {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(uuid.charAt(i), 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("Invalid UUID string: " + uuid);
+            }
+            value = (value << 4) | digit;
         }
+        return value;
     }
 }
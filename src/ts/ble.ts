@@ -102,6 +102,8 @@ export interface BLEError {
     name: string;
     id: string;
     errorMessage: string;
+    /* 'connectTimeout' when the connection wasn't established in time */
+    errorCode?: string;
 }
 
 export interface RestoredState {
@@ -129,9 +131,291 @@ export interface StartScanOptions {
     reportDuplicates?: boolean;
 }
 
+export type LogLevel = 'verbose' | 'debug' | 'info' | 'warn' | 'error' | 'none';
+
+export interface LogOptions {
+    /* lowest level written to logcat, default 'info' */
+    logcat?: LogLevel;
+    /* lowest level kept in the ring buffer, default 'debug', notifications are 'debug' and scan results 'verbose' */
+    buffer?: LogLevel;
+    /* records kept, default 1024, changing it drops the records */
+    size?: number;
+}
+
+export interface LogRecord {
+    /* epoch milliseconds */
+    time: number;
+    level: 'V' | 'D' | 'I' | 'W' | 'E';
+    event: string;
+    address?: string;
+    detail?: string;
+    /* numbers that depend on the event, e.g. the value length of a notify */
+    a: number;
+    b: number;
+}
+
+export interface CommandMetrics {
+    count: number;
+    /* milliseconds between queueing and dispatch, histogram bucket i counts times below 2^i ms */
+    wait: { total: number; histogram: number[] };
+    /* milliseconds between dispatch and the GATT callback */
+    roundTrip: { total: number; max: number; histogram: number[] };
+}
+
+export interface PeripheralMetrics {
+    /* milliseconds since the metrics were created or reset */
+    since: number;
+    queueDepth: number;
+    maxQueueDepth: number;
+    notifications: number;
+    /* notifications per second */
+    notificationRate: number;
+    bytesIn: number;
+    bytesOut: number;
+    reconnects: number;
+    timeouts: number;
+    /* count per gatt status code, e.g. { '0': 1300, '133': 1 } */
+    statusCodes: { [status: string]: number };
+    /* keyed by read, write, writeWithoutResponse, startNotification, stopNotification, readRSSI, setPreferredPhy, readPhy,
+       discoverServices (after the peripheral changed its services) */
+    commands: { [command: string]: CommandMetrics };
+}
+
+export interface PluginMetrics {
+    scanResults: number;
+    bondRetries: number;
+    /* keyed by device id, peripherals that never connected are left out */
+    peripherals: { [deviceId: string]: PeripheralMetrics };
+}
+
+export interface TraceOptions {
+    /* events kept, the oldest are dropped first, default 4096 */
+    capacity?: number;
+}
+
+/* Chrome trace JSON, open it in chrome://tracing or ui.perfetto.dev */
+export interface ChromeTrace {
+    traceEvents: {
+        name: string;
+        cat: 'ble';
+        ph: 'X';
+        /* microseconds since the epoch */
+        ts: number;
+        /* microseconds */
+        dur: number;
+        pid: number;
+        tid: number;
+        args: { address?: string; value: number };
+    }[];
+    displayTimeUnit: 'ms';
+}
+
+export interface PresenceData {
+    id: string;
+    name: string;
+    rssi: number;
+    /* most recent RSSI samples, oldest first */
+    rssiHistory: number[];
+    /* milliseconds since epoch */
+    lastSeen: number;
+}
+
+export interface PresenceEvent extends PresenceData {
+    event: 'appeared' | 'lost';
+}
+
+export interface PresenceOptions {
+    /* milliseconds without an advertisement before a device is reported lost, default 10000 */
+    timeout?: number;
+}
+
+/* several PHYs can be combined, e.g. '2M|1M' */
+export type Phy = '1M' | '2M' | 'coded' | string;
+
+export interface PhyData {
+    txPhy: '1M' | '2M' | 'coded';
+    rxPhy: '1M' | '2M' | 'coded';
+}
+
+export type ConnectionStateName = 'IDLE' | 'CONNECTING' | 'DISCOVERING' | 'READY' | 'DISCONNECTING' | 'BACKOFF';
+
+export interface ConnectionTransition {
+    from: ConnectionStateName;
+    to: ConnectionStateName;
+    /* epoch milliseconds */
+    at: number;
+    /* milliseconds spent in the previous state */
+    duration: number;
+}
+
+export interface ConnectionTimings {
+    state: ConnectionStateName;
+    /* milliseconds in the current state */
+    since: number;
+    /* milliseconds from connect to services discovered, reconnects included */
+    lastConnect?: number;
+    lastDiscovery?: number;
+    connects: number;
+    backoffs: number;
+    /* the last 32 transitions, oldest first */
+    transitions: ConnectionTransition[];
+}
+
+export interface ConnectOptions {
+    /* when connection slots run out, idle links with a lower priority are disconnected first, default 'normal' */
+    priority?: 'high' | 'normal' | 'low';
+    /* milliseconds to establish the connection before failing with errorCode 'connectTimeout', 0 waits forever,
+       defaults to connectTimeout of setConnectionOptions */
+    timeout?: number;
+    /* preferred PHY for the connection (Android 8+), defaults to the device profile or the stack's choice */
+    phy?: Phy;
+}
+
+export interface ConnectRecipe {
+    /* requested right after service discovery */
+    mtu?: number;
+    connectionPriority?: ConnectionPriority;
+    /* subscribed in order once mtu and connection priority are set */
+    notifications?: { service: string; characteristic: string }[];
+}
+
+export interface RecipeReadyData extends PeripheralDataExtended {
+    /* milliseconds spent in each step: queue, connect, discover, mtu, priority, subscribe and total */
+    timings: { [step: string]: number };
+    /* negotiated MTU, when requested */
+    mtu?: number;
+    /* steps that failed, the remaining steps still ran */
+    errors?: { step: string; errorMessage: string }[];
+}
+
+export interface RecipeNotification {
+    service: string;
+    characteristic: string;
+    value: ArrayBuffer;
+    sequence: number;
+}
+
+export interface ReconnectRule {
+    /* attempts after an unexpected disconnect, default 0 (2 for gatt status 133) */
+    maxAttempts?: number;
+    /* milliseconds before the first attempt, default 100 */
+    initialDelay?: number;
+    /* upper bound for the delay, default 5000 */
+    maxDelay?: number;
+    /* delay growth per attempt, default 2 */
+    multiplier?: number;
+    /* random +/- fraction applied to each delay, 0 - 1, default 0.2 */
+    jitter?: number;
+}
+
+export interface ReconnectPolicy extends ReconnectRule {
+    /* rules per gatt status code, e.g. { '133': { maxAttempts: 3 } }, 'timeout' applies to connect timeouts */
+    statuses?: { [status: string]: ReconnectRule };
+    /* rules per device family, e.g. 'weight' or 'bloodpressure', which may have their own statuses */
+    families?: { [family: string]: ReconnectRule & { statuses?: { [status: string]: ReconnectRule } } };
+}
+
+export interface ConnectionOptions {
+    /* maximum number of simultaneous GATT connections, default 7 */
+    maxConnections?: number;
+    /* milliseconds without traffic before a connection may be disconnected for a higher priority one, default 10000 */
+    idleTimeout?: number;
+    /* default milliseconds to establish a connection, 0 waits forever, default 15000 */
+    connectTimeout?: number;
+    /* replaces the reconnect policy used after unexpected disconnects */
+    reconnect?: ReconnectPolicy;
+    /* milliseconds autoConnect waits for a bond of a device that must be bonded first, default 30000 */
+    bondTimeout?: number;
+    /* bond attempts before autoConnect fails, default 2 */
+    bondAttempts?: number;
+    /* reconnect peripherals and their notifications after Bluetooth is turned off and on again, default false */
+    restore?: boolean;
+}
+
+export interface ConnectionEvent {
+    id: string;
+    event: 'reconnecting' | 'reconnectFailed' | 'phyUpdate' | 'restored' | 'servicesChanged';
+    /* gatt status of the disconnect, -1 for a connect timeout */
+    status?: number;
+    attempt?: number;
+    maxAttempts?: number;
+    /* milliseconds until the attempt */
+    delay?: number;
+    txPhy?: '1M' | '2M' | 'coded';
+    rxPhy?: '1M' | '2M' | 'coded';
+    /* number of notification subscriptions registered again */
+    subscriptions?: number;
+    /* [Android] the services after the peripheral changed them, servicesChanged only */
+    services?: string[];
+    characteristics?: PeripheralCharacteristic[];
+}
+
 export interface L2CAPOptions {
     psm: number;
     secureChannel?: boolean;
+    /* [Android] bytes already received are delivered together up to this size, 0 delivers every read, default 0 */
+    receiveBatchSize?: number;
+    /* [Android] longest milliseconds reads are held back to fill a batch, default 20 */
+    receiveBatchDelay?: number;
+    /* [Android] queued bytes above which write resolves only once the queue drained, default 65536 */
+    writeHighWatermark?: number;
+    /* [Android] queued bytes at which the held back writes resolve, default 16384 */
+    writeLowWatermark?: number;
+    /* [Android] send small writes together in one packet, the peer no longer sees the write boundaries, default false */
+    coalesceWrites?: boolean;
+    /* [Android] receiveData gets complete messages instead of the bytes as they arrive */
+    framing?: L2CAPFraming;
+}
+
+export type L2CAPFraming = {
+    type: 'lengthPrefix';
+    /* size of the length header, 1, 2 or 4, default 2 */
+    lengthBytes?: number;
+    /* default false, big endian */
+    littleEndian?: boolean;
+    /* the length counts the header too, default false */
+    lengthIncludesHeader?: boolean;
+    /* longer messages close the channel, default 1048576 */
+    maxLength?: number;
+} | {
+    type: 'delimiter';
+    /* bytes or a string, e.g. '\n' */
+    delimiter: number[] | string;
+    /* the delimiter is kept at the end of the message, default false */
+    includeDelimiter?: boolean;
+    /* messages without a delimiter after this many bytes close the channel, default 1048576 */
+    maxLength?: number;
+};
+
+export interface L2CAPTransferProgress {
+    bytes: number;
+    /* 0 when unknown */
+    total: number;
+    /* milliseconds since the transfer started */
+    elapsed: number;
+}
+
+export interface L2CAPTransferResult extends L2CAPTransferProgress {
+    /* bytes per second */
+    throughput: number;
+    done: true;
+}
+
+export interface L2CAPStats {
+    psm: number;
+    connected: boolean;
+    bytesReceived: number;
+    reads: number;
+    deliveries: number;
+    readsPerDelivery: number;
+    /* bytes per second since the channel connected */
+    receiveThroughput: number;
+    bytesSent: number;
+    /* packets written to the channel, fewer than writes when coalesceWrites is on */
+    frames: number;
+    sendThroughput: number;
+    /* bytes waiting to be written */
+    queuedBytes: number;
 }
 
 export enum BluetoothEventType {
@@ -229,6 +513,10 @@ export class L2CAPCordovaInterface {
         return this.bridge.invoke('receiveDataL2Cap', deviceId, psm);
     }
 
+    /**
+     * Queues the data. Resolves right away while less than writeHighWatermark bytes are queued, otherwise
+     * once the queue drained to writeLowWatermark, so awaiting every write keeps up with the link.
+     */
     public write(
         deviceId: string,
         psm: number,
@@ -236,6 +524,61 @@ export class L2CAPCordovaInterface {
     ): Promise<void> {
         return this.bridge.invoke('writeL2Cap', deviceId, psm, data);
     }
+
+    /**
+     * Streams a local file to the channel natively, the bytes don't pass through JavaScript.
+     * path is an absolute path or a file:// url.
+     * [iOS] sendFile is not supported on iOS.
+     */
+    public sendFile(
+        deviceId: string,
+        psm: number,
+        path: string,
+        progress?: (data: L2CAPTransferProgress) => any
+    ): Promise<L2CAPTransferResult> {
+        return new Promise((resolve, reject) => {
+            const onEvent = (data: any) => {
+                if (data.done) {
+                    resolve(data);
+                } else if (progress) {
+                    progress(data);
+                }
+            };
+            this.bridge.invokeCb('sendFileL2Cap', onEvent, reject, deviceId, psm, path);
+        });
+    }
+
+    /**
+     * Streams the channel into a local file natively until length bytes were received or, without a length,
+     * until the channel closes. Meanwhile receiveData gets nothing.
+     * [iOS] receiveFile is not supported on iOS.
+     */
+    public receiveFile(
+        deviceId: string,
+        psm: number,
+        path: string,
+        length?: number,
+        progress?: (data: L2CAPTransferProgress) => any
+    ): Promise<L2CAPTransferResult> {
+        return new Promise((resolve, reject) => {
+            const onEvent = (data: any) => {
+                if (data.done) {
+                    resolve(data);
+                } else if (progress) {
+                    progress(data);
+                }
+            };
+            this.bridge.invokeCb('receiveFileL2Cap', onEvent, reject, deviceId, psm, path, length || 0);
+        });
+    }
+
+    /**
+     * Throughput and batching of the channel since it connected.
+     * [iOS] getStats is not supported on iOS.
+     */
+    public getStats(deviceId: string, psm: number): Promise<L2CAPStats> {
+        return this.bridge.invoke('getL2CapStats', deviceId, psm);
+    }
 }
 
 export class BLEPluginCordovaInterface {
@@ -339,16 +682,98 @@ export class BLEPluginCordovaInterface {
         return this.bridge.invoke('list');
     }
 
+    /**
+     * Lists the devices seen by a scan that have not been reported lost.
+     * [iOS] listInRange is not supported on iOS.
+     */
+    public listInRange(): Promise<PresenceData[]> {
+        return this.bridge.invoke('listInRange');
+    }
+
+    /**
+     * Levels of the native log, calls below both levels cost a single comparison.
+     * [iOS] setLogLevel is not supported on iOS.
+     */
+    public setLogLevel(options: LogOptions): Promise<void> {
+        return this.bridge.invoke('setLogLevel', options);
+    }
+
+    /**
+     * The records of the native ring buffer, oldest first.
+     * [iOS] dumpLog is not supported on iOS.
+     */
+    public dumpLog(clear?: boolean): Promise<LogRecord[]> {
+        return this.bridge.invoke('dumpLog', clear);
+    }
+
+    /**
+     * Performance counters of the plugin and its peripherals, reset starts counting from zero again.
+     * [iOS] getMetrics is not supported on iOS.
+     */
+    public getMetrics(deviceId?: null, reset?: boolean): Promise<PluginMetrics>;
+    public getMetrics(deviceId: string, reset?: boolean): Promise<PeripheralMetrics>;
+    public getMetrics(deviceId?: string | null, reset?: boolean): Promise<PluginMetrics | PeripheralMetrics> {
+        return this.bridge.invoke('getMetrics', deviceId, reset);
+    }
+
+    /**
+     * Record connects, service discovery, MTU requests, command queueing and dispatch, scan results and L2CAP
+     * reads into an in-memory timeline. The same sections are always visible in Perfetto system traces.
+     * [iOS] startTrace is not supported on iOS.
+     */
+    public startTrace(options?: TraceOptions): Promise<void> {
+        return this.bridge.invoke('startTrace', options);
+    }
+
+    /**
+     * The timeline as Chrome trace JSON, stop ends the recording and frees the timeline.
+     * [iOS] exportTrace is not supported on iOS.
+     */
+    public exportTrace(stop?: boolean): Promise<ChromeTrace> {
+        return this.bridge.invoke('exportTrace', stop);
+    }
+
+    /**
+     * [Android] connections are established one at a time and capped by setConnectionOptions.
+     */
     public connect(
         deviceId: string,
         connectCallback: (data: PeripheralDataExtended) => any,
-        disconnectCallback: (error: string | BLEError) => any
+        disconnectCallback: (error: string | BLEError) => any,
+        options: ConnectOptions = {}
     ): void {
         const successWrapper = (peripheral: any) => {
             convertToNativeJS(peripheral);
             connectCallback(peripheral);
         };
-        this.bridge.invokeCb('connect', successWrapper, disconnectCallback, deviceId);
+        this.bridge.invokeCb('connect', successWrapper, disconnectCallback, deviceId, options);
+    }
+
+    /**
+     * Connects and runs the recipe natively as soon as services are discovered. ready is called once all steps
+     * are done, and again after every reconnect. Notifications of the recipe's subscriptions go to notification.
+     * [iOS] connectWithRecipe is not supported on iOS.
+     */
+    public connectWithRecipe(
+        deviceId: string,
+        recipe: ConnectRecipe,
+        ready: (data: RecipeReadyData) => any,
+        disconnectCallback: (error: string | BLEError) => any,
+        notification?: (data: RecipeNotification) => any,
+        options: ConnectOptions = {}
+    ): void {
+        const successWrapper = (data: any) => {
+            convertToNativeJS(data);
+            if (data.event === 'notification') {
+                delete data.event;
+                if (notification) {
+                    notification(data);
+                }
+            } else {
+                ready(data);
+            }
+        };
+        this.bridge.invokeCb('connectWithRecipe', successWrapper, disconnectCallback, deviceId, recipe, options);
     }
 
     /**
@@ -360,7 +785,8 @@ export class BLEPluginCordovaInterface {
     public autoConnect(
         deviceId: string,
         connectCallback: (data: PeripheralDataExtended) => any,
-        disconnectCallback: (error: string | BLEError) => any
+        disconnectCallback: (error: string | BLEError) => any,
+        options: ConnectOptions = {}
     ): void {
 
         let disconnectCallbackWrapper: (peripheral: any) => void;
@@ -380,7 +806,7 @@ export class BLEPluginCordovaInterface {
 
                 // reconnect if we have a peripheral.id and the user didn't call disconnect
                 if (peripheral.id && autoconnected[peripheral.id]) {
-                    this.bridge.invokeCb('autoConnect', connectCallbackWrapper, disconnectCallbackWrapper, deviceId);
+                    this.bridge.invokeCb('autoConnect', connectCallbackWrapper, disconnectCallbackWrapper, deviceId, options);
                 }
             };
         } else {
@@ -388,7 +814,15 @@ export class BLEPluginCordovaInterface {
             disconnectCallbackWrapper = disconnectCallback;
         }
 
-        this.bridge.invokeCb('autoConnect', connectCallbackWrapper, disconnectCallbackWrapper, deviceId);
+        this.bridge.invokeCb('autoConnect', connectCallbackWrapper, disconnectCallbackWrapper, deviceId, options);
+    }
+
+    /**
+     * Configures how GATT connections are shared between peripherals.
+     * [iOS] setConnectionOptions is not supported on iOS.
+     */
+    public setConnectionOptions(options: ConnectionOptions): Promise<void> {
+        return this.bridge.invoke('setConnectionOptions', options);
     }
 
     public disconnect(deviceId: string): Promise<void> {
@@ -420,6 +854,30 @@ export class BLEPluginCordovaInterface {
         return this.bridge.invoke('requestMtu', deviceId, mtu);
     }
 
+    /**
+     * Requests the PHY used for the connection, e.g. '2M' for throughput or 'coded' for range. Resolves with the
+     * PHY the link actually uses. codedOption 's2' or 's8' picks the coding of the coded PHY.
+     * [iOS] setPreferredPhy is not supported on iOS.
+     */
+    public setPreferredPhy(deviceId: string, phy: Phy, codedOption?: 's2' | 's8'): Promise<PhyData> {
+        return this.bridge.invoke('setPreferredPhy', deviceId, phy, codedOption || '');
+    }
+
+    /**
+     * [iOS] readPhy is not supported on iOS.
+     */
+    public readPhy(deviceId: string): Promise<PhyData> {
+        return this.bridge.invoke('readPhy', deviceId);
+    }
+
+    /**
+     * The connection state of the peripheral and how long each transition took, to profile connection latency.
+     * [iOS] getConnectionTimings is not supported on iOS.
+     */
+    public getConnectionTimings(deviceId: string): Promise<ConnectionTimings> {
+        return this.bridge.invoke('getConnectionTimings', deviceId);
+    }
+
     /**
      * When Connecting to a peripheral android can request for the connection priority for faster communication.
      * [iOS] requestConnectionPriority is not supported on iOS.
@@ -483,6 +941,8 @@ export class BLEPluginCordovaInterface {
      * - options
      *      emitOnRegistered  - Default is false. Emit "registered" to success callback 
      *                          when peripheral confirms notifications are active
+     *      persistent        - Default is false. [Android] Subscribe again after every reconnect,
+     *                          until stopNotification or disconnect is called
      */
     public startNotification(
         deviceId: string,
@@ -490,7 +950,7 @@ export class BLEPluginCordovaInterface {
         characteristicUuid: string,
         success: (rawData: ArrayBuffer | 'registered') => any,
         failure: (error: string | BLEError) => any,
-        options?: { emitOnRegistered: boolean }
+        options?: { emitOnRegistered?: boolean; persistent?: boolean }
     ): void {
 
         const emitOnRegistered = options && options.emitOnRegistered == true;
@@ -504,7 +964,8 @@ export class BLEPluginCordovaInterface {
             }
         }
 
-        this.bridge.invokeCb('startNotification', onEvent, failure, deviceId, serviceUuid, characteristicUuid);
+        const persistent = options && options.persistent == true;
+        this.bridge.invokeCb('startNotification', onEvent, failure, deviceId, serviceUuid, characteristicUuid, { persistent });
     }
 
     public stopNotification(
@@ -600,6 +1061,39 @@ export class BLEPluginCordovaInterface {
         return this.bridge.invoke('stopStateNotifications');
     }
 
+    /**
+     * Registers a listener for devices appearing in and leaving scan range.
+     * A device is lost when it has not advertised for options.timeout while scanning,
+     * or when a scan with callbackType 'lost' reports it.
+     * [iOS] startPresenceNotifications is not supported on iOS.
+     */
+    public startPresenceNotifications(
+        options: PresenceOptions,
+        change: (event: PresenceEvent) => any,
+        failure?: (error: string) => any
+    ): void {
+        this.bridge.invokeCb('startPresenceNotifications', change, failure, options || {});
+    }
+
+    public stopPresenceNotifications(): Promise<void> {
+        return this.bridge.invoke('stopPresenceNotifications');
+    }
+
+    /**
+     * Registers a listener for connection events of all peripherals, like reconnect attempts.
+     * [iOS] startConnectionEvents is not supported on iOS.
+     */
+    public startConnectionEvents(
+        event: (event: ConnectionEvent) => any,
+        failure?: (error: string) => any
+    ): void {
+        this.bridge.invokeCb('startConnectionEvents', event, failure);
+    }
+
+    public stopConnectionEvents(): Promise<void> {
+        return this.bridge.invoke('stopConnectionEvents');
+    }
+
     /**
      * Reports the BLE restoration status if the app was restarted by iOS as a result of a BLE event.
      * See https://developer.apple.com/library/archive/documentation/NetworkingInternetWeb/Conceptual/CoreBluetooth_concepts/CoreBluetoothBackgroundProcessingForIOSApps/PerformingTasksWhileYourAppIsInTheBackground.html#//apple_ref/doc/uid/TP40013257-CH7-SW10